@@ -0,0 +1,154 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * An inverted page table: one record per physical page, giving the process
+ * and virtual page it holds. This answers "who owns frame N" in constant time,
+ * without searching every process's page table.
+ *
+ * <p>
+ * Each record also holds a pin count. A pinned frame is never chosen for
+ * replacement, which lets the kernel load a page into a frame, or copy to or
+ * from one, without the frame being taken away part way through. A frame's
+ * reference state is the <tt>used</tt> bit of its owner's
+ * <tt>TranslationEntry</tt>, which the processor sets on every access.
+ *
+ * <p>
+ * The kernel keeps one frame table, <tt>UserKernel.frameTable</tt>. It is
+ * guarded by <tt>UserKernel.myLock</tt>; every method here must be called with
+ * that lock held.
+ */
+public class FrameTable {
+	/**
+	 * Allocate a frame table with every frame unowned and unpinned.
+	 *
+	 * @param numFrames the number of physical pages.
+	 */
+	public FrameTable(int numFrames) {
+		owner = new UserProcess[numFrames];
+		vpn = new int[numFrames];
+		pinCount = new int[numFrames];
+		shared = new boolean[numFrames];
+	}
+
+	/**
+	 * Return the number of frames.
+	 */
+	public int size() {
+		return owner.length;
+	}
+
+	/**
+	 * Record that frame <i>ppn</i> holds page <i>vpn</i> of <i>process</i>.
+	 */
+	public void map(int ppn, UserProcess process, int vpn) {
+		this.owner[ppn] = process;
+		this.vpn[ppn] = vpn;
+		this.shared[ppn] = false;
+	}
+
+	/**
+	 * Record that frame <i>ppn</i> holds an executable page shared by any number
+	 * of processes. A shared frame has no single owner.
+	 */
+	public void mapShared(int ppn) {
+		owner[ppn] = null;
+		vpn[ppn] = -1;
+		shared[ppn] = true;
+	}
+
+	/**
+	 * Record that frame <i>ppn</i> no longer holds anything.
+	 */
+	public void unmap(int ppn) {
+		Lib.assertTrue(pinCount[ppn] == 0, "unmapping a pinned frame");
+
+		owner[ppn] = null;
+		vpn[ppn] = -1;
+		shared[ppn] = false;
+	}
+
+	/**
+	 * Return the process whose page is in frame <i>ppn</i>, or <tt>null</tt> if
+	 * the frame is free or shared.
+	 */
+	public UserProcess getOwner(int ppn) {
+		return owner[ppn];
+	}
+
+	/**
+	 * Return the virtual page held in frame <i>ppn</i> by its owner.
+	 */
+	public int getVPN(int ppn) {
+		return vpn[ppn];
+	}
+
+	/**
+	 * Return the owner's page table entry for frame <i>ppn</i>, or
+	 * <tt>null</tt> if the frame has no owner.
+	 */
+	public TranslationEntry getEntry(int ppn) {
+		if (owner[ppn] == null || owner[ppn].pageTable == null)
+			return null;
+
+		return owner[ppn].pageTable[vpn[ppn]];
+	}
+
+	/**
+	 * Return <tt>true</tt> if frame <i>ppn</i> holds a page shared through the
+	 * executable page cache.
+	 */
+	public boolean isShared(int ppn) {
+		return shared[ppn];
+	}
+
+	/**
+	 * Return <tt>true</tt> if frame <i>ppn</i> has been accessed since its
+	 * reference state was last cleared.
+	 */
+	public boolean isReferenced(int ppn) {
+		TranslationEntry entry = getEntry(ppn);
+		return entry != null && entry.used;
+	}
+
+	public void clearReferenced(int ppn) {
+		TranslationEntry entry = getEntry(ppn);
+		if (entry != null)
+			entry.used = false;
+	}
+
+	/**
+	 * Keep frame <i>ppn</i> from being replaced until a matching
+	 * <tt>unpin()</tt>. Pins nest.
+	 */
+	public void pin(int ppn) {
+		pinCount[ppn]++;
+	}
+
+	public void unpin(int ppn) {
+		Lib.assertTrue(pinCount[ppn] > 0, "unpinning an unpinned frame");
+		pinCount[ppn]--;
+	}
+
+	public boolean isPinned(int ppn) {
+		return pinCount[ppn] > 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if frame <i>ppn</i> may be taken for replacement:
+	 * it holds a valid private page and is not pinned.
+	 */
+	public boolean isEvictable(int ppn) {
+		if (isShared(ppn) || isPinned(ppn))
+			return false;
+
+		TranslationEntry entry = getEntry(ppn);
+		return entry != null && entry.valid;
+	}
+
+	private UserProcess[] owner;
+	private int[] vpn;
+	private int[] pinCount;
+	private boolean[] shared;
+}
@@ -1,7 +1,8 @@
 package nachos.userprog;
 
 import nachos.machine.*;
-import java.util.LinkedList;
+import java.util.BitSet;
+import java.util.Hashtable;
 import nachos.threads.*;
 import nachos.userprog.*;
 
@@ -27,12 +28,21 @@ public class UserKernel extends ThreadedKernel {
 		console = new SynchConsole(Machine.console());
 
 		// Alec
-		fPhysPages = new LinkedList<Integer>();
-		myLock = new Lock();
-
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
-			fPhysPages.add(i);
-		} // end
+		fPhysPages = new BitSet(Machine.processor().getNumPhysPages());
+		fPhysPages.set(0, Machine.processor().getNumPhysPages());
+		numFreePages = Machine.processor().getNumPhysPages();
+		myLock = new Lock("UserKernel.myLock");
+		swapWritten = new Condition(myLock);
+		sharedPages = new Hashtable<String, SharedPage>();
+		sharedLock = new Lock("UserKernel.sharedLock");
+
+		frameTable = new FrameTable(Machine.processor().getNumPhysPages());
+		clockHand = 0;
+
+		swapFile = ThreadedKernel.fileSystem.open(swapName, true);
+		Lib.assertTrue(swapFile != null, "cannot create swap file");
+		swapSlots = new BitSet();
+		// end
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -72,45 +82,431 @@ public class UserKernel extends ThreadedKernel {
 		return ((UThread) KThread.currentThread()).process;
 	}
 
+	// Alec Howard
 	/**
-	 * The exception handler. This handler is called by the processor whenever a
-	 * user instruction causes a processor exception.
+	 * Allocate <i>pageNum</i> physical pages, not necessarily contiguous, in one
+	 * lock acquisition. Free pages are taken first; any shortfall is evicted
+	 * with the clock algorithm. The pages are returned pinned and unowned, and
+	 * are given back with <tt>releasePhysPages()</tt>.
 	 *
-	 * <p>
-	 * When the exception handler is invoked, interrupts are enabled, and the
-	 * processor's cause register contains an integer identifying the cause of the
-	 * exception (see the <tt>exceptionZZZ</tt> constants in the <tt>Processor</tt>
-	 * class). If the exception involves a bad virtual address (e.g. page fault, TLB
-	 * miss, read-only, bus error, or address error), the processor's BadVAddr
-	 * register identifies the virtual address that caused the exception.
+	 * @param pageNum the number of pages to allocate.
+	 * @return the page numbers allocated, or <tt>null</tt> if not enough pages
+	 *         could be found, in which case none are allocated.
 	 */
-
-	// Alec Howard
 	public static int[] allocatePhysPages(int pageNum) {
 		myLock.acquire();
 
-		if (fPhysPages.size() < pageNum) {
-			myLock.release();
-			return null;
-		}
 		int[] rtn = new int[pageNum];
 
-		for (int i = 0; i < pageNum; i++) {
-			rtn[i] = fPhysPages.remove();
+		int i = 0;
+		int ppn = -1;
+		while (i < pageNum && (ppn = fPhysPages.nextSetBit(ppn + 1)) != -1) {
+			fPhysPages.clear(ppn);
+			numFreePages--;
+			frameTable.pin(ppn);
+			rtn[i++] = ppn;
 		}
+		while (i < pageNum && (ppn = evictPage()) != -1) {
+			frameTable.pin(ppn);
+			rtn[i++] = ppn;
+		}
+
+		if (i < pageNum) {
+			while (i > 0) {
+				ppn = rtn[--i];
+				frameTable.unpin(ppn);
+				fPhysPages.set(ppn);
+				numFreePages++;
+			}
+			rtn = null;
+		}
+
 		myLock.release();
 
 		return rtn;
 	}
 
+	/**
+	 * Allocate a physical page to hold page <i>vpn</i> of <i>owner</i>. If no
+	 * page is free, one is taken from a process using the clock algorithm: the
+	 * hand sweeps over the frames, clearing the <tt>used</tt> bit of each page it
+	 * passes, and takes the first page whose bit is already clear. Shared and
+	 * pinned pages are never taken. If page <i>vpn</i> of <i>owner</i> is still
+	 * being written to swap, this waits for the write to finish so the page can
+	 * be read back.
+	 *
+	 * <p>
+	 * The page is returned pinned, so it cannot be taken while it is being
+	 * filled; the caller must <tt>unpinPage()</tt> it once its page table entry
+	 * is valid.
+	 *
+	 * @param owner the process the page is for, or <tt>null</tt> for a page
+	 *              shared between processes.
+	 * @param vpn   the virtual page it will hold.
+	 * @return the physical page number, or -1 if nothing could be evicted.
+	 */
+	public static int allocatePage(UserProcess owner, int vpn) {
+		myLock.acquire();
+
+		while (owner != null && owner.isPagingOut(vpn)) {
+			swapWritten.sleep();
+		}
+
+		int ppn = fPhysPages.nextSetBit(0);
+		if (ppn != -1) {
+			fPhysPages.clear(ppn);
+			numFreePages--;
+		} else {
+			ppn = evictPage();
+		}
+
+		if (ppn != -1) {
+			if (owner != null) {
+				frameTable.map(ppn, owner, vpn);
+			} else {
+				frameTable.mapShared(ppn);
+			}
+			frameTable.pin(ppn);
+		}
+
+		myLock.release();
+
+		return ppn;
+	}
+
+	/**
+	 * Drop a pin taken on a physical page.
+	 */
+	public static void unpinPage(int ppn) {
+		myLock.acquire();
+		frameTable.unpin(ppn);
+		myLock.release();
+	}
+
+	/**
+	 * Pin the pages of <i>owner</i> from virtual page <tt>firstVPN + start</tt>
+	 * up to <tt>firstVPN + end</tt>, for as long as they are in memory and may be
+	 * accessed, storing each physical page number in <tt>ppns</tt>. Pinned pages
+	 * are marked used, and dirty if <i>write</i> is set.
+	 *
+	 * @return the index in <i>ppns</i> of the first page not pinned, or
+	 *         <i>end</i> if all were.
+	 */
+	public static int pinPages(UserProcess owner, int firstVPN, int[] ppns, int start, int end, boolean write) {
+		myLock.acquire();
+
+		int i = start;
+		for (; i < end; i++) {
+			int vpn = firstVPN + i;
+			if (vpn < 0 || vpn >= owner.numPages) {
+				break;
+			}
+			TranslationEntry entry = owner.pageTable[vpn];
+			if (!entry.valid || (write && entry.readOnly)) {
+				break;
+			}
+
+			entry.used = true;
+			if (write) {
+				entry.dirty = true;
+			}
+			frameTable.pin(entry.ppn);
+			ppns[i] = entry.ppn;
+		}
+
+		myLock.release();
+
+		return i;
+	}
+
+	/**
+	 * Drop the pins on the first <i>count</i> pages of <i>ppns</i>.
+	 */
+	public static void unpinPages(int[] ppns, int count) {
+		myLock.acquire();
+		for (int i = 0; i < count; i++) {
+			frameTable.unpin(ppns[i]);
+		}
+		myLock.release();
+	}
+
+	/**
+	 * Choose a victim with the clock algorithm and page it out. Must be called
+	 * with myLock held. A dirty victim is written to swap with myLock released;
+	 * by then the frame is unmapped and pinned, so no one else takes it.
+	 *
+	 * @return the physical page freed, or -1 if every page is shared or
+	 *         pinned.
+	 */
+	private static int evictPage() {
+		// the running process's latest used and dirty bits may be in the TLB
+		if (Machine.processor().hasTLB()) {
+			UserProcess.syncTLB();
+		}
+
+		// two sweeps: one to clear the used bits, one to find a clear one
+		for (int i = 0; i < 2 * frameTable.size(); i++) {
+			int ppn = clockHand;
+			clockHand = (clockHand + 1) % frameTable.size();
+
+			if (!frameTable.isEvictable(ppn)) {
+				continue;
+			}
+
+			if (frameTable.isReferenced(ppn)) {
+				frameTable.clearReferenced(ppn);
+			} else {
+				UserProcess owner = frameTable.getOwner(ppn);
+				int vpn = frameTable.getVPN(ppn);
+				frameTable.unmap(ppn);
+				int slot = owner.pageOut(vpn);
+				if (slot != -1) {
+					frameTable.pin(ppn);
+					myLock.release();
+					writeSwap(slot, ppn);
+					myLock.acquire();
+					frameTable.unpin(ppn);
+					owner.pageOutDone(vpn);
+					swapWritten.wakeAll();
+				}
+				return ppn;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Release every physical page allocated to <i>owner</i> through
+	 * <tt>allocatePage()</tt>, and the swap slots in <i>slots</i>, in one lock
+	 * acquisition. The pages are found by walking the owner's page table, so the
+	 * cost follows the size of the process rather than of memory. Called when a
+	 * process exits.
+	 *
+	 * @param owner the process.
+	 * @param slots the process's swap slots, -1 where it has none.
+	 */
+	public static void releaseProcessPages(UserProcess owner, int[] slots) {
+		myLock.acquire();
+
+		// a page still on its way to swap must land before its slot is freed
+		while (owner.isPagingOut()) {
+			swapWritten.sleep();
+		}
+
+		TranslationEntry[] pageTable = owner.pageTable;
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid && !entry.readOnly) {
+				Lib.assertTrue(frameTable.getOwner(entry.ppn) == owner);
+				frameTable.unmap(entry.ppn);
+				fPhysPages.set(entry.ppn);
+				numFreePages++;
+				entry.valid = false;
+			}
+		}
+
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i] != -1) {
+				swapSlots.clear(slots[i]);
+			}
+		}
+
+		myLock.release();
+	}
+
+	/**
+	 * Reserve a page-sized slot in the swap file. Must be called with myLock held,
+	 * which is the case during eviction.
+	 */
+	static int allocateSwapSlot() {
+		int slot = swapSlots.nextClearBit(0);
+		swapSlots.set(slot);
+		return slot;
+	}
+
+	/**
+	 * Copy physical page <i>ppn</i> out to swap slot <i>slot</i>. The caller
+	 * must not hold myLock, so other faults go on during the write.
+	 */
+	static void writeSwap(int slot, int ppn) {
+		int written = swapFile.write(slot * Processor.pageSize, Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0), Processor.pageSize);
+		Lib.assertTrue(written == Processor.pageSize, "swap write failed");
+	}
+
+	/**
+	 * Copy swap slot <i>slot</i> into physical page <i>ppn</i>. The caller
+	 * must not hold myLock, so other faults go on during the read.
+	 */
+	static void readSwap(int slot, int ppn) {
+		int read = swapFile.read(slot * Processor.pageSize, Machine.processor().getMemory(),
+				Processor.makeAddress(ppn, 0), Processor.pageSize);
+		Lib.assertTrue(read == Processor.pageSize, "swap read failed");
+	}
+
+	/**
+	 * Allocate <i>pageNum</i> physical pages with consecutive page numbers. Only
+	 * free pages are used; nothing is evicted to make room. The pages are
+	 * returned pinned and unowned, and are given back with
+	 * <tt>releasePhysPages()</tt>.
+	 *
+	 * @param pageNum the number of pages to allocate.
+	 * @return the first page number allocated, or -1 if no run of
+	 *         <i>pageNum</i> free pages exists.
+	 */
+	public static int allocateContiguousPhysPages(int pageNum) {
+		Lib.assertTrue(pageNum > 0);
+
+		myLock.acquire();
+
+		int first = -1;
+		if (numFreePages >= pageNum) {
+			int start = fPhysPages.nextSetBit(0);
+			while (start != -1) {
+				int end = fPhysPages.nextClearBit(start);
+				if (end - start >= pageNum) {
+					first = start;
+					break;
+				}
+				start = fPhysPages.nextSetBit(end);
+			}
+		}
+
+		if (first != -1) {
+			fPhysPages.clear(first, first + pageNum);
+			numFreePages -= pageNum;
+			for (int ppn = first; ppn < first + pageNum; ppn++) {
+				frameTable.pin(ppn);
+			}
+		}
+
+		myLock.release();
+
+		return first;
+	}
+
+	/**
+	 * Return a physical page to the free pool.
+	 *
+	 * @param phys the page number to free.
+	 */
 	public static void releasePhysPage(int phys) {
+		releasePhysPages(new int[] { phys });
+	}
+
+	/**
+	 * Return a batch of physical pages to the free pool. A shared page has no
+	 * pin left by now; any other page came from <tt>allocatePhysPages()</tt> or
+	 * <tt>allocateContiguousPhysPages()</tt> and drops their pin.
+	 *
+	 * @param phys the page numbers to free.
+	 */
+	public static void releasePhysPages(int[] phys) {
 		myLock.acquire();
-		fPhysPages.add(phys);
+
+		for (int i = 0; i < phys.length; i++) {
+			Lib.assertTrue(!fPhysPages.get(phys[i]), "page freed twice");
+			fPhysPages.set(phys[i]);
+			if (!frameTable.isShared(phys[i])) {
+				frameTable.unpin(phys[i]);
+			}
+			frameTable.unmap(phys[i]);
+		}
+		numFreePages += phys.length;
+
 		myLock.release();
 	}
 
+	/**
+	 * Map a page of a read-only COFF section, sharing one frame among every
+	 * process running the same executable. The first process to ask loads the
+	 * page; later ones take another reference to the same frame. Every
+	 * successful call must be matched by a call to <tt>releaseSharedPage()</tt>.
+	 *
+	 * @param name    the name of the executable.
+	 * @param s       the section number.
+	 * @param section the section.
+	 * @param spn     the page within the section.
+	 * @return the physical page holding the contents, or -1 if no memory is
+	 *         left.
+	 */
+	public static int acquireSharedPage(String name, int s, CoffSection section, int spn) {
+		Lib.assertTrue(section.isReadOnly());
+
+		String key = sharedPageKey(name, s, spn);
+
+		sharedLock.acquire();
+
+		SharedPage page = sharedPages.get(key);
+		if (page == null) {
+			// with no owner, the frame is never chosen for eviction
+			int ppn = allocatePage(null, -1);
+			if (ppn == -1) {
+				sharedLock.release();
+				return -1;
+			}
+			section.loadPage(spn, ppn);
+			unpinPage(ppn);
+
+			page = new SharedPage(ppn);
+			sharedPages.put(key, page);
+		}
+		page.refs++;
+
+		sharedLock.release();
+
+		return page.ppn;
+	}
+
+	/**
+	 * Drop a reference taken by <tt>acquireSharedPage()</tt>. The frame is freed
+	 * when its last reference is dropped.
+	 */
+	public static void releaseSharedPage(String name, int s, int spn) {
+		String key = sharedPageKey(name, s, spn);
+
+		sharedLock.acquire();
+
+		SharedPage page = sharedPages.get(key);
+		Lib.assertTrue(page != null && page.refs > 0);
+
+		if (--page.refs == 0) {
+			sharedPages.remove(key);
+			releasePhysPage(page.ppn);
+		}
+
+		sharedLock.release();
+	}
+
+	private static String sharedPageKey(String name, int s, int spn) {
+		return name + ":" + s + ":" + spn;
+	}
+
+	/** A frame holding one page of an executable, and how many map it. */
+	private static class SharedPage {
+		SharedPage(int ppn) {
+			this.ppn = ppn;
+		}
+
+		int ppn;
+		int refs = 0;
+	}
+
 	// end
 
+	/**
+	 * The exception handler. This handler is called by the processor whenever a
+	 * user instruction causes a processor exception.
+	 *
+	 * <p>
+	 * When the exception handler is invoked, interrupts are enabled, and the
+	 * processor's cause register contains an integer identifying the cause of the
+	 * exception (see the <tt>exceptionZZZ</tt> constants in the <tt>Processor</tt>
+	 * class). If the exception involves a bad virtual address (e.g. page fault, TLB
+	 * miss, read-only, bus error, or address error), the processor's BadVAddr
+	 * register identifies the virtual address that caused the exception.
+	 */
 	public void exceptionHandler() {
 		Lib.assertTrue(KThread.currentThread() instanceof UThread);
 
@@ -141,6 +537,9 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		swapFile.close();
+		ThreadedKernel.fileSystem.remove(swapName);
+
 		super.terminate();
 	}
 
@@ -151,6 +550,28 @@ public class UserKernel extends ThreadedKernel {
 	private static Coff dummy1 = null;
 
 	public static Lock myLock;
-	private static LinkedList<Integer> fPhysPages;
+	/** Signalled on myLock whenever an evicted page has been written to swap. */
+	private static Condition swapWritten;
+	/** The free physical pages, one bit per page. Guarded by myLock. */
+	private static BitSet fPhysPages;
+	private static int numFreePages;
+	/**
+	 * Frames shared by processes running the same executable, keyed by file
+	 * name, section and page. Guarded by sharedLock, which is always taken
+	 * before myLock.
+	 */
+	private static Hashtable<String, SharedPage> sharedPages;
+	private static Lock sharedLock;
+	/**
+	 * The owner, virtual page and pin count of every physical page. Guarded by
+	 * myLock.
+	 */
+	public static FrameTable frameTable;
+	private static int clockHand;
+
+	private static final String swapName = "nachos.swap";
+	private static OpenFile swapFile;
+	/** The swap slots in use. Guarded by myLock. */
+	private static BitSet swapSlots;
 
 }
@@ -5,6 +5,7 @@ import java.util.HashSet;
 import nachos.threads.*;
 import nachos.userprog.*;
 import java.util.Hashtable;
+import java.util.Arrays;
 
 import java.io.EOFException;
 
@@ -72,17 +73,150 @@ public class UserProcess {
 
 	/**
 	 * Save the state of this process in preparation for a context switch. Called by
-	 * <tt>UThread.saveState()</tt>.
+	 * <tt>UThread.saveState()</tt>. If the processor has a TLB, copies the
+	 * <tt>used</tt> and <tt>dirty</tt> bits the hardware has set in it back to the
+	 * page table.
 	 */
 	public void saveState() {
+		if (Machine.processor().hasTLB()) {
+			syncTLB();
+		}
 	}
 
 	/**
 	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * <tt>UThread.restoreState()</tt>. If the processor has a TLB, it is flushed
+	 * only when a different process last used it; switching between threads of
+	 * one process keeps its entries.
 	 */
 	public void restoreState() {
-		Machine.processor().setPageTable(pageTable);
+		if (!Machine.processor().hasTLB()) {
+			Machine.processor().setPageTable(pageTable);
+			return;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (tlbOwner != this) {
+			Processor processor = Machine.processor();
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				processor.writeTLBEntry(i, new TranslationEntry(0, 0, false, false, false, false));
+			}
+			tlbOwner = this;
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Copy the <tt>used</tt> and <tt>dirty</tt> bits of every TLB entry into the
+	 * page table of the process that owns the TLB, and clear the <tt>used</tt>
+	 * bits in the TLB so the next access sets them again. The page replacement
+	 * clock calls this before it reads any <tt>used</tt> bits.
+	 */
+	static void syncTLB() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (tlbOwner != null && tlbOwner.pageTable != null) {
+			Processor processor = Machine.processor();
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry tlbEntry = processor.readTLBEntry(i);
+				if (!tlbEntry.valid) {
+					continue;
+				}
+
+				TranslationEntry entry = tlbOwner.pageTable[tlbEntry.vpn];
+				entry.used |= tlbEntry.used;
+				entry.dirty |= tlbEntry.dirty;
+
+				if (tlbEntry.used) {
+					tlbEntry.used = false;
+					processor.writeTLBEntry(i, tlbEntry);
+				}
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove any TLB entry for page <i>vpn</i> of this process, keeping its
+	 * <tt>used</tt> and <tt>dirty</tt> bits in the page table. Called when the
+	 * page is evicted.
+	 */
+	private void invalidateTLBEntry(int vpn) {
+		if (!Machine.processor().hasTLB()) {
+			return;
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (tlbOwner == this) {
+			Processor processor = Machine.processor();
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry tlbEntry = processor.readTLBEntry(i);
+				if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+					pageTable[vpn].used |= tlbEntry.used;
+					pageTable[vpn].dirty |= tlbEntry.dirty;
+
+					tlbEntry.valid = false;
+					processor.writeTLBEntry(i, tlbEntry);
+				}
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Load the translation for page <i>vpn</i> into the TLB, faulting the page in
+	 * first if need be. An empty TLB slot is used if there is one; otherwise the
+	 * slots are replaced in turn, and the bits of the entry replaced are kept in
+	 * the page table.
+	 *
+	 * @return <tt>false</tt> if <i>vpn</i> is not part of this process or could
+	 *         not be brought into memory.
+	 */
+	private boolean handleTLBMiss(int vpn) {
+		if (vpn < 0 || vpn >= numPages) {
+			return false;
+		}
+		TranslationEntry entry = pageTable[vpn];
+
+		while (true) {
+			if (!entry.valid && !handlePageFault(vpn)) {
+				return false;
+			}
+
+			boolean intStatus = Machine.interrupt().disable();
+
+			// the page may have been evicted again while it was being loaded
+			if (entry.valid) {
+				Processor processor = Machine.processor();
+
+				int slot = -1;
+				for (int i = 0; i < processor.getTLBSize() && slot == -1; i++) {
+					if (!processor.readTLBEntry(i).valid) {
+						slot = i;
+					}
+				}
+				if (slot == -1) {
+					slot = tlbHand;
+					tlbHand = (tlbHand + 1) % processor.getTLBSize();
+
+					TranslationEntry victim = processor.readTLBEntry(slot);
+					pageTable[victim.vpn].used |= victim.used;
+					pageTable[victim.vpn].dirty |= victim.dirty;
+				}
+
+				processor.writeTLBEntry(slot, new TranslationEntry(entry));
+
+				Machine.interrupt().restore(intStatus);
+				return true;
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
 	}
 
 	/**
@@ -152,32 +286,7 @@ public class UserProcess {
 		 * return amount;
 		 */
 
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		int firstVPN = Processor.pageFromAddress(vaddr), firstOffset = Processor.offsetFromAddress(vaddr),
-				lastVPN = Processor.pageFromAddress(vaddr + length);
-
-		TranslationEntry entry = getTranslation(firstVPN, false);
-
-		if (entry == null)
-			return 0;
-
-		int amount = Math.min(length, pageSize - firstOffset);
-		System.arraycopy(memory, Processor.makeAddress(entry.ppn, firstOffset), data, offset, amount);
-		offset += amount;
-
-		for (int i = firstVPN + 1; i <= lastVPN; i++) {
-			entry = getTranslation(i, false);
-			if (entry == null)
-				return amount;
-			int len = Math.min(length - amount, pageSize);
-			System.arraycopy(memory, Processor.makeAddress(entry.ppn, 0), data, offset, len);
-			offset += len;
-			amount += len;
-		}
-		return amount;
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	protected TranslationEntry getTranslation(int virt, boolean written) {
@@ -190,6 +299,9 @@ public class UserProcess {
 		if ((rtn == null) || (rtn.readOnly && written)) {
 			return null;
 		}
+		if (!rtn.valid && !handlePageFault(virt)) {
+			return null;
+		}
 		rtn.used = true;
 
 		if (written) {
@@ -239,35 +351,165 @@ public class UserProcess {
 		 * return amount;
 		 */
 
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy between this process's virtual memory and <i>data</i>. The whole range
+	 * is translated and pinned first, faulting pages in as needed, so no page can
+	 * be evicted part way through. Pages that turn out to be physically
+	 * contiguous are then copied with a single <tt>System.arraycopy()</tt>.
+	 *
+	 * <p>
+	 * If a page cannot be translated, the pages before it are still copied.
+	 *
+	 * @param write <tt>true</tt> to copy from <i>data</i> into memory, or
+	 *              <tt>false</tt> to copy from memory into <i>data</i>.
+	 * @return the number of bytes successfully transferred.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean write) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		if (length == 0) {
+			return 0;
+		}
 
 		int firstVPN = Processor.pageFromAddress(vaddr), firstOffset = Processor.offsetFromAddress(vaddr),
-				lastVPN = Processor.pageFromAddress(vaddr + length);
+				lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+		if (lastVPN < firstVPN || firstVPN >= numPages) {
+			return 0;
+		}
 
-		TranslationEntry entry = getTranslation(firstVPN, true);
+		int[] ppns = new int[Math.min(lastVPN, numPages - 1) - firstVPN + 1];
+		int pages = pinRange(firstVPN, ppns, ppns.length, write);
 
-		if (entry == null)
-			return 0;
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+
+		for (int i = 0; i < pages;) {
+			int j = endOfRun(ppns, i, pages);
 
-		int amount = Math.min(length, pageSize - firstOffset);
-		System.arraycopy(data, offset, memory, Processor.makeAddress(entry.ppn, firstOffset), amount);
-		offset += amount;
-
-		for (int i = firstVPN + 1; i <= lastVPN; i++) {
-			entry = getTranslation(i, true);
-			if (entry == null)
-				return amount;
-			int len = Math.min(length - amount, pageSize);
-			System.arraycopy(data, offset, memory, Processor.makeAddress(entry.ppn, 0), len);
-			offset += len;
+			int pageOffset = (i == 0) ? firstOffset : 0;
+			int paddr = Processor.makeAddress(ppns[i], pageOffset);
+			int len = Math.min(length - amount, (j - i) * pageSize - pageOffset);
+
+			if (write) {
+				System.arraycopy(data, offset + amount, memory, paddr, len);
+			} else {
+				System.arraycopy(memory, paddr, data, offset + amount, len);
+			}
 			amount += len;
+
+			i = j;
 		}
 
+		UserKernel.unpinPages(ppns, pages);
+
 		return amount;
 	}
 
+	/**
+	 * Move up to <i>count</i> bytes between <i>file</i> and this process's
+	 * virtual memory at <i>vaddr</i>, with no intermediate buffer: the file reads
+	 * into, or writes from, the processor's memory array directly. The buffer is
+	 * pinned a window at a time, and each physically contiguous run within the
+	 * window is one call to the file.
+	 *
+	 * @param toMemory <tt>true</tt> to read from the file into memory, or
+	 *                 <tt>false</tt> to write memory to the file.
+	 * @return the number of bytes transferred, which is less than <i>count</i>
+	 *         only if a read reached the end of the available data, or -1 if the
+	 *         buffer is not valid, the file reported an error, or a write was
+	 *         short.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int count, boolean toMemory) {
+		byte[] memory = Machine.processor().getMemory();
+		int total = 0;
+
+		while (total < count) {
+			int start = vaddr + total;
+			int firstVPN = Processor.pageFromAddress(start), firstOffset = Processor.offsetFromAddress(start);
+			int chunk = Math.min(count - total, ioPages.length * pageSize - firstOffset);
+			int lastVPN = Processor.pageFromAddress(start + chunk - 1);
+			if (firstVPN >= numPages || lastVPN < firstVPN) {
+				return -1;
+			}
+
+			int needed = lastVPN - firstVPN + 1;
+			int pages = pinRange(firstVPN, ioPages, needed, toMemory);
+			if (pages < needed) {
+				UserKernel.unpinPages(ioPages, pages);
+				return -1;
+			}
+
+			int moved = 0;
+			boolean shortTransfer = false;
+			for (int i = 0; i < pages && !shortTransfer;) {
+				int j = endOfRun(ioPages, i, pages);
+
+				int pageOffset = (i == 0) ? firstOffset : 0;
+				int paddr = Processor.makeAddress(ioPages[i], pageOffset);
+				int len = Math.min(chunk - moved, (j - i) * pageSize - pageOffset);
+
+				int n = toMemory ? file.read(memory, paddr, len) : file.write(memory, paddr, len);
+				if (n < 0) {
+					UserKernel.unpinPages(ioPages, pages);
+					return -1;
+				}
+				moved += n;
+				shortTransfer = (n < len);
+
+				i = j;
+			}
+
+			UserKernel.unpinPages(ioPages, pages);
+			total += moved;
+
+			if (shortTransfer) {
+				return toMemory ? total : -1;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Translate and pin <i>count</i> consecutive pages starting at
+	 * <i>firstVPN</i>, storing their physical page numbers in <i>ppns</i>. Every
+	 * page already in memory is pinned in one call to the kernel; a missing page
+	 * is faulted in and the pinning resumes from there.
+	 *
+	 * @return the number of pages pinned, which is less than <i>count</i> if a
+	 *         page could not be translated.
+	 */
+	private int pinRange(int firstVPN, int[] ppns, int count, boolean write) {
+		int pinned = 0;
+
+		while (pinned < count) {
+			pinned = UserKernel.pinPages(this, firstVPN, ppns, pinned, count, write);
+
+			if (pinned < count && getTranslation(firstVPN + pinned, write) == null) {
+				break;
+			}
+		}
+
+		return pinned;
+	}
+
+	/**
+	 * Return the index just past the run of physically consecutive pages in
+	 * <i>ppns</i> that begins at <i>start</i>, looking no further than
+	 * <i>limit</i>.
+	 */
+	private static int endOfRun(int[] ppns, int start, int limit) {
+		int end = start + 1;
+		while (end < limit && ppns[end] == ppns[end - 1] + 1) {
+			end++;
+		}
+
+		return end;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and prepare to
 	 * pass it the specified arguments. Opens the executable, reads its header
@@ -287,6 +529,8 @@ public class UserProcess {
 			return false;
 		}
 
+		coffName = name;
+
 		try {
 			coff = new Coff(executable);
 		} catch (EOFException e) {
@@ -355,29 +599,18 @@ public class UserProcess {
 	}
 
 	/**
-	 * Allocates memory for this process, and loads the COFF sections into memory.
-	 * If this returns successfully, the process will definitely be run (this is the
-	 * last step in process initialization that can fail).
+	 * Sets up the page table for this process. No memory is allocated and no
+	 * pages are loaded here: every entry starts out invalid, and each page is
+	 * brought in by <tt>handlePageFault()</tt> the first time it is touched.
+	 * If this returns successfully, the process will definitely be run (this is
+	 * the last step in process initialization that can fail).
 	 *
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
 
-		int[] ppnLst = UserKernel.allocatePhysPages(numPages);
-
-		if (ppnLst == null) {
-			coff.close();
-			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-			return false;
-		}
-
-		/*
-		 * if (numPages > Machine.processor().getNumPhysPages()) { coff.close();
-		 * Lib.debug(dbgProcess, "\tinsufficient physical memory"); return false; }
-		 */
 		pageTable = new TranslationEntry[numPages];
 
-		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
@@ -386,17 +619,19 @@ public class UserProcess {
 
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
-				int ppn = ppnLst[vpn];
-				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(), false, false);
-
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, ppn);
-			}
-			for (int i = numPages - stackPages - 1; i < numPages; i++) {
-				pageTable[i] = new TranslationEntry(i, ppnLst[i], true, false, false, false);
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false, section.isReadOnly(), false, false);
 			}
 		}
 
+		// the stack and argument pages
+		for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++) {
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+		}
+
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+		pagingOut = new boolean[numPages];
+
 		return true;
 	}
 
@@ -404,12 +639,159 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		
-		  coff.close();
-		 
-		  for (int i = 0; i < numPages; i++) {
-		  UserKernel.releasePhysPage(pageTable[i].ppn); } pageTable = null;
-		 
+
+		if (Machine.processor().hasTLB()) {
+			boolean intStatus = Machine.interrupt().disable();
+			if (tlbOwner == this) {
+				tlbOwner = null;
+			}
+			Machine.interrupt().restore(intStatus);
+		}
+
+		for (int i = 0; i < numPages; i++) {
+			if (pageTable[i].valid && pageTable[i].readOnly) {
+				int s = sectionFor(i);
+				UserKernel.releaseSharedPage(coffName, s, i - coff.getSection(s).getFirstVPN());
+			}
+		}
+
+		// private pages may be evicted at any time, so the kernel frees them
+		UserKernel.releaseProcessPages(this, swapSlots);
+		pageTable = null;
+
+		coff.close();
+
+	}
+
+	/**
+	 * Bring in the page <i>vpn</i> on its first use. A page of a COFF section is
+	 * read from the executable; a stack or argument page is zero-filled. Pages
+	 * of read-only sections are shared with every other process running the
+	 * same executable, through <tt>UserKernel.acquireSharedPage()</tt>. Any
+	 * other page that has been written to swap is read back from there.
+	 *
+	 * @param vpn the virtual page that was touched.
+	 * @return <tt>true</tt> if the page is now valid, or <tt>false</tt> if
+	 *         <i>vpn</i> is not part of this process or no memory is left.
+	 */
+	protected boolean handlePageFault(int vpn) {
+		if (vpn < 0 || vpn >= numPages) {
+			return false;
+		}
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid) {
+			return true;
+		}
+
+		int s = sectionFor(vpn);
+		CoffSection section = (s == -1) ? null : coff.getSection(s);
+
+		int ppn;
+		if (section != null && section.isReadOnly()) {
+			ppn = UserKernel.acquireSharedPage(coffName, s, section, vpn - section.getFirstVPN());
+		} else {
+			ppn = UserKernel.allocatePage(this, vpn);
+
+			if (ppn != -1 && swapSlots[vpn] != -1) {
+				UserKernel.readSwap(swapSlots[vpn], ppn);
+			} else if (ppn != -1 && section != null) {
+				section.loadPage(vpn - section.getFirstVPN(), ppn);
+			} else if (ppn != -1) {
+				int paddr = Processor.makeAddress(ppn, 0);
+				Arrays.fill(Machine.processor().getMemory(), paddr, paddr + pageSize, (byte) 0);
+			}
+		}
+		if (ppn == -1) {
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
+		entry.ppn = ppn;
+		// give the faulting access a chance to run before the clock takes it
+		entry.used = true;
+		entry.dirty = false;
+		entry.valid = true;
+
+		// the shared page cache unpins its own pages once they are loaded
+		if (!entry.readOnly) {
+			UserKernel.unpinPage(ppn);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Take page <i>vpn</i> out of memory so its frame can be reused. The entry,
+	 * and any TLB copy of it, is made invalid at once, so the next access faults
+	 * instead of using the frame. A page that has changed since it was loaded is
+	 * given a swap slot, which is returned; the caller writes the frame there and
+	 * then calls <tt>pageOutDone()</tt>. A clean page can be brought back from
+	 * swap, the executable, or zero-fill as before. Called by
+	 * <tt>UserKernel</tt> with its frame lock held.
+	 *
+	 * @return the swap slot to write the page to, or -1 if it is clean.
+	 */
+	int pageOut(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		Lib.assertTrue(entry.valid && !entry.readOnly);
+
+		// unmap the page in one step, so no access slips in between the TLB
+		// copy of the dirty bit and the entry going invalid
+		boolean intStatus = Machine.interrupt().disable();
+		invalidateTLBEntry(vpn);
+		boolean dirty = entry.dirty;
+		entry.valid = false;
+		entry.dirty = false;
+		Machine.interrupt().restore(intStatus);
+
+		if (!dirty) {
+			return -1;
+		}
+		if (swapSlots[vpn] == -1) {
+			swapSlots[vpn] = UserKernel.allocateSwapSlot();
+		}
+		pagingOut[vpn] = true;
+		numPagingOut++;
+		return swapSlots[vpn];
+	}
+
+	/**
+	 * Note that the swap write started by <tt>pageOut()</tt> has finished. Called
+	 * by <tt>UserKernel</tt> with its frame lock held.
+	 */
+	void pageOutDone(int vpn) {
+		Lib.assertTrue(pagingOut[vpn]);
+		pagingOut[vpn] = false;
+		numPagingOut--;
+	}
+
+	/**
+	 * Return <tt>true</tt> if page <i>vpn</i> is still being written to swap.
+	 */
+	boolean isPagingOut(int vpn) {
+		return pagingOut[vpn];
+	}
+
+	/**
+	 * Return <tt>true</tt> if any page of this process is being written to swap.
+	 */
+	boolean isPagingOut() {
+		return numPagingOut > 0;
+	}
+
+	/**
+	 * Return the number of the COFF section holding <i>vpn</i>, or -1 if it is a
+	 * stack or argument page.
+	 */
+	private int sectionFor(int vpn) {
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (vpn >= section.getFirstVPN() && vpn < section.getFirstVPN() + section.getLength()) {
+				return s;
+			}
+		}
+
+		return -1;
 	}
 
 	/**
@@ -522,13 +904,8 @@ public class UserProcess {
 	}
 
 	private int handleRead(int f, int b, int c) {
-		int nextUp = c;
-		int read = 0;
-		int byteRead = 0;
-
-		byte[] buffer = new byte[pageSize];
 
-		if (f == 1 || f < 0 || f > 15) {
+		if (f == 1 || f < 0 || f > 15 || c < 0) {
 
 			return -1;
 		}
@@ -539,58 +916,12 @@ public class UserProcess {
 			return -1;
 		}
 
-		while (nextUp >= pageSize) {
-			byteRead = myFile.read(buffer, 0, pageSize);
-
-			if (byteRead < 0) {
-
-				return -1;
-			} else if (byteRead == 0) {
-				return read;
-			}
-			int byteTransfer = writeVirtualMemory(b, buffer, 0, byteRead);
-
-			if (byteRead != byteTransfer) {
-
-				return -1;
-			}
-
-			b += byteTransfer;
-			read += byteTransfer;
-			nextUp -= byteTransfer;
-
-		}
-
-		byteRead = myFile.read(buffer, 0, nextUp);
-
-		if (byteRead < 0) {
-
-			return -1;
-		}
-		int byteTransfer = writeVirtualMemory(b, buffer, 0, byteRead);
-		if (byteRead != byteTransfer) {
-
-			return -1;
-		}
-		read += byteTransfer;
-
-		return read;
+		return transferFile(myFile, b, c, true);
 	}
 
 	private int handleWrite(int f, int b, int c) {
 
-		int nextUp = c;
-		int written = 0;
-		int byteWrite = 0;
-
-		byte[] buffer = new byte[pageSize];
-
-		if (f == 0) {
-
-			return -1;
-		}
-
-		if (f <= 0 || f > 15) {
+		if (f <= 0 || f > 15 || c < 0) {
 
 			return -1;
 
@@ -602,39 +933,7 @@ public class UserProcess {
 			return -1;
 		}
 
-		while (nextUp > pageSize) {
-			byteWrite = readVirtualMemory(b, buffer);
-			int write = myFile.write(buffer, 0, byteWrite);
-			if (write != byteWrite) {
-
-			}
-			if (write < 0) {
-
-				return -1;
-			} else if (byteWrite == 0) {
-				return written;
-			}
-
-			b += write;
-			written += write;
-			nextUp -= write;
-
-		}
-		byteWrite = readVirtualMemory(b, buffer, 0, nextUp);
-		int write = myFile.write(buffer, 0, nextUp);
-		if (byteWrite != write) {
-			return -1;
-		}
-		if (byteWrite != c) {
-			return -1;
-		}
-
-		if (write == -1) {
-
-			return -1;
-		}
-		written += write;
-		return written;
+		return transferFile(myFile, b, c, false);
 	}
 
 	private int handleClose(int f) {
@@ -874,6 +1173,20 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionPageFault:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			// the faulting instruction is simply retried once the page is in
+			if (!handlePageFault(vpn)) {
+				handleExit(-1);
+			}
+			break;
+
+		case Processor.exceptionTLBMiss:
+			if (!handleTLBMiss(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr)))) {
+				handleExit(-1);
+			}
+			break;
+
 		default:
 
 			Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
@@ -884,10 +1197,19 @@ public class UserProcess {
 
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The file name of the program, which keys its shared pages. */
+	protected String coffName;
 	protected OpenFile[] fTable;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
+	/** The swap slot holding each page, or -1 if it has never been swapped. */
+	protected int[] swapSlots;
+	/** The pages being written to swap, and their count. Guarded by the kernel's frame lock. */
+	private boolean[] pagingOut;
+	private int numPagingOut;
+	/** The frames pinned for a read or write syscall, reused between calls. */
+	private int[] ioPages = new int[ioWindowPages];
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
@@ -902,9 +1224,16 @@ public class UserProcess {
 	private HashSet<Integer> numChild;
 
 	private static final int pageSize = Processor.pageSize;
+	/** The most pages one read or write syscall pins at a time. */
+	private static final int ioWindowPages = 16;
 	private static final char dbgProcess = 'a';
 	private Semaphore done;
 
 	private static Hashtable<Integer, UserProcess> proc = new Hashtable<Integer, UserProcess>();
 	private static Hashtable<Integer, UserProcess> deadProc = new Hashtable<Integer, UserProcess>();
+
+	/** The process whose translations are in the TLB, if the processor has one. */
+	private static UserProcess tlbOwner = null;
+	/** The next TLB slot to replace when none is empty. */
+	private static int tlbHand = 0;
 }
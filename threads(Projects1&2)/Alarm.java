@@ -92,4 +92,40 @@ public class Alarm {
 
 	}
 
+	/**
+	 * Arrange for <i>thread</i> to be readied by the timer interrupt handler once
+	 * the time reaches <i>wakeTime</i>. Unlike <tt>waitUntil()</tt>, this does not
+	 * put the thread to sleep; the caller is expected to do that itself. Must be
+	 * called with interrupts disabled.
+	 *
+	 * @param thread   the thread to wake.
+	 * @param wakeTime the earliest time at which to wake it.
+	 */
+	void wakeAt(KThread thread, long wakeTime) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		lst1.add(wakeTime);
+		lst2.add(thread);
+	}
+
+	/**
+	 * Cancel a wakeup arranged with <tt>wakeAt()</tt>. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @param thread the thread whose wakeup to cancel.
+	 * @return <tt>true</tt> if a pending wakeup was cancelled, or <tt>false</tt>
+	 *         if the thread had none (for example, because it already fired).
+	 */
+	boolean cancel(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		int i = lst2.indexOf(thread);
+		if (i < 0)
+			return false;
+
+		lst1.remove(i);
+		lst2.remove(i);
+		return true;
+	}
+
 }
@@ -0,0 +1,112 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A cyclic barrier. A fixed number of threads, the <i>parties</i>, call
+ * <tt>await()</tt>; each one waits until all of them have arrived, and the
+ * last to arrive releases the rest. The barrier then resets so it can be used
+ * for the next phase.
+ *
+ * <p>
+ * The last arriver readies every waiter inside one interrupt-disabled section,
+ * rather than each waiter being woken through its own semaphore.
+ *
+ * @see nachos.threads.CountDownLatch
+ */
+public class Barrier {
+
+	// Private Vars\\
+	private int parties;
+	private int waiting;
+	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+
+	/**
+	 * Allocate a new barrier.
+	 *
+	 * @param parties the number of threads that must call <tt>await()</tt>
+	 *                before any of them is released. Must be positive.
+	 */
+	public Barrier(int parties) {
+		Lib.assertTrue(parties > 0);
+
+		this.parties = parties;
+		this.waiting = 0;
+	}
+
+	/**
+	 * Wait until all parties have called <tt>await()</tt> on this barrier.
+	 *
+	 * @return the number of parties that had yet to arrive when this thread
+	 *         arrived; <tt>0</tt> for the thread that released the others.
+	 */
+	public int await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int remaining = parties - waiting - 1;
+
+		if (remaining == 0) {// last to arrive: release this phase and reset
+			LinkedList<KThread> released = waitQueue;
+			waitQueue = new LinkedList<KThread>();
+			waiting = 0;
+
+			KThread.readyAll(released);
+		} else {
+			waiting++;
+			waitQueue.add(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return remaining;
+	}
+
+	/**
+	 * Return the number of parties this barrier waits for.
+	 *
+	 * @return the number of parties.
+	 */
+	public int getParties() {
+		return parties;
+	}
+
+	/**
+	 * Test that no party gets past the barrier before every party has reached
+	 * it, over several phases, and that exactly one party per phase is told it
+	 * arrived last.
+	 */
+	public static void selfTest() {
+		final int parties = 3, phases = 3;
+		final Barrier barrier = new Barrier(parties);
+		final int[] arrived = new int[phases];
+		final int[] last = new int[phases];
+
+		Runnable party = new Runnable() {
+			public void run() {
+				for (int p = 0; p < phases; p++) {
+					arrived[p]++;
+					if (barrier.await() == 0)
+						last[p]++;
+					Lib.assertTrue(arrived[p] == parties, "left the barrier early");
+					KThread.yield();
+				}
+			}
+		};
+
+		KThread[] threads = new KThread[parties - 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread(party).setName("barrier party " + i);
+			threads[i].fork();
+		}
+		party.run();
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		for (int p = 0; p < phases; p++)
+			Lib.assertTrue(last[p] == 1);
+	}
+}
@@ -1,26 +1,46 @@
 package nachos.threads;
 
 import nachos.ag.BoatGrader;
-
+import nachos.machine.*;
+
+/**
+ * Gets a group of adults and children from Oahu to Molokai with one boat that
+ * holds two children, or one child, or one adult.
+ *
+ * <p>
+ * The crossing follows a fixed pattern. While only children are needed, two
+ * children row over and the passenger brings the boat back. Whenever the boat
+ * is on Oahu, empty, and a child is on Molokai to return it, one adult rows
+ * over and a child on Molokai brings the boat back. Each role waits on its own
+ * condition variable, so only a thread that can actually move next is woken.
+ */
 public class Boat {
 
-	static Lock O;
+	/** Where the boat, or a person, is. */
+	enum Island {
+		OAHU, MOLOKAI
+	}
 
-	static Condition adultsWaitingO;
-	static Condition childrenWaitingO;
+	static Lock O;
 
-	static Condition childrenWaitingM;
-	static Condition CWaiting;
+	static Condition adultsWaitingO;// adults on Oahu waiting for their turn
+	static Condition childrenWaitingO;// children on Oahu waiting for a seat
+	static Condition childrenWaitingM;// children on Molokai waiting to row back
+	static Condition pilotWaiting;// a seated pilot waiting for a passenger
+	static Condition passengerWaiting;// a passenger waiting to reach Molokai
 
-	static String island;
+	static Island boat;
+	static int seats;// children seated in the boat on Oahu
+	static boolean returnNeeded;// an adult has left the boat on Molokai
+	static boolean finished;
 
-	static Integer numCWaiting;
-	static Integer numPass;
+	static int numAO;
+	static int numCO;
+	static int numCM;
 
-	static Integer numAO;
-	static Integer numCO;
+	static int crossings;
 
-	static Semaphore done;
+	static CountDownLatch done;
 
 	static BoatGrader bg;
 
@@ -36,38 +56,71 @@ public class Boat {
 		System.out.println("\n ***Testing Boats with 3 children, 3 adults***");
 		begin(3, 3, b);
 
+		System.out.println("\n ***Testing Boats with only 1 child***");
+		begin(0, 1, b);
+		Lib.assertTrue(crossings == 1 && numCM == 1);
+
+	}
+
+	/**
+	 * Move <i>adults</i> adults and <i>children</i> children across without
+	 * printing each trip, and report the number of crossings per 1000 clock
+	 * ticks.
+	 *
+	 * @param adults   the number of adults.
+	 * @param children the number of children.
+	 */
+	public static void benchmark(int adults, int children) {
+		if (!canCross(adults, children)) {
+			System.out.println("Boat benchmark: " + adults + " adults cannot cross with " + children + " children");
+			return;
+		}
+
+		long startTime = Machine.timer().getTime();
+
+		begin(adults, children, new QuietGrader());
+
+		long ticks = Machine.timer().getTime() - startTime;
+
+		System.out.println("Boat benchmark: " + adults + " adults, " + children + " children, " + crossings
+				+ " crossings in " + ticks + " ticks, "
+				+ (ticks > 0 ? (crossings * 1000L / ticks) : crossings) + " per 1000 ticks");
 	}
 
 	public static void begin(int adults, int children, BoatGrader b) {
+		if (!canCross(adults, children)) {
+			System.out.println("Boat: no crossing exists for " + adults + " adults and " + children + " children");
+			return;
+		}
+
 		// Store the externally generated autograder in a class
 		// variable to be accessible by children.
 		bg = b;
 
 		// Instantiate global variables here
 
-		O = new Lock();
+		O = new Lock("Boat.O");
 
 		adultsWaitingO = new Condition(O);
 		childrenWaitingO = new Condition(O);
-
 		childrenWaitingM = new Condition(O);
-		CWaiting = new Condition(O);
+		pilotWaiting = new Condition(O);
+		passengerWaiting = new Condition(O);
 
-		island = "Oahu";
-		// keep track of children on each island
+		boat = Island.OAHU;
+		seats = 0;
+		returnNeeded = false;
+		finished = false;
+
+		// keep track of who is on each island
 		numAO = adults;
 		numCO = children;
-		done = new Semaphore(0);
-		numCWaiting = 0;
-		numPass = 0;
+		numCM = 0;
 
-		// Create threads here. See section 3.4 of the Nachos for Java
-		// Walkthrough linked from the projects page.
+		crossings = 0;
 
-		/*
-		 * Runnable r = new Runnable() { public void run() { SampleItinerary(); } };
-		 * KThread t = new KThread(r); t.setName("Sample Boat Thread"); t.fork();
-		 */
+		// every thread counts down as it leaves, so begin() returns after all
+		done = new CountDownLatch(adults + children);
 
 		for (int j = 0; j < children; j++) {
 			Runnable r = new Runnable() {
@@ -80,7 +133,6 @@ public class Boat {
 			t.fork();
 		}
 
-		//////////////////////////////////////////////
 		for (int i = 0; i < adults; i++) {
 			Runnable r = new Runnable() {
 				public void run() {
@@ -90,86 +142,194 @@ public class Boat {
 			KThread t = new KThread(r);
 			t.setName("Adult Boat Thread " + i);
 			t.fork();
-
 		}
-		/////////////////////////////////////
 
-		done.P();
+		done.await();
 
 	}
 
 	static void AdultItinerary() {
-		/*
-		 * This is where you should put your solutions. Make calls to the BoatGrader to
-		 * show that it is synchronized. For example: bg.AdultRowToMolokai(); indicates
-		 * that an adult has rowed the boat across to Molokai
-		 */
-
 		O.acquire();
-		while (numCO > 1 || island != "Oahu") {
+
+		while (!adultMayRow()) {
 			adultsWaitingO.sleep();
 		}
-		island = "Molokai";
-		numAO--;
 
 		bg.AdultRowToMolokai();
+		crossings++;
+
+		numAO--;
+		boat = Island.MOLOKAI;
 
+		// a child is still on Oahu, so one on Molokai must bring the boat back
+		returnNeeded = true;
 		childrenWaitingM.wake();
 
 		O.release();
 
+		done.countDown();
+
 	}// end AdultItinerary
 
 	static void ChildItinerary() {
+		Island island = Island.OAHU;
 
-		while (numCO > 1 || numAO >= 1) {
-			O.acquire();
+		O.acquire();
 
-			if (numCO == 1) {
-				adultsWaitingO.wake();
-			} // end if
+		while (!finished) {
+			if (island == Island.OAHU) {
+				while (!finished && !childMayBoard()) {
+					childrenWaitingO.sleep();
+				}
+				if (finished)
+					break;
+
+				seats++;
+
+				if (seats == 1 && numCO == 1 && numAO == 0) {// the only one left: row alone
+					bg.ChildRowToMolokai();
+					crossings++;
+
+					boat = Island.MOLOKAI;
+					seats = 0;
+					numCO--;
+					numCM++;
+
+					finish();
+					break;
+				} else if (seats == 1) {// pilot: wait for a passenger, then row
+					childrenWaitingO.wake();
+					while (seats < 2) {
+						pilotWaiting.sleep();
+					}
+
+					bg.ChildRowToMolokai();
+					crossings++;
+
+					boat = Island.MOLOKAI;
+					island = Island.MOLOKAI;
+					passengerWaiting.wake();
+				} else {// passenger: ride over, then bring the boat back
+					pilotWaiting.wake();
+					while (boat != Island.MOLOKAI) {
+						passengerWaiting.sleep();
+					}
+
+					bg.ChildRideToMolokai();
+
+					island = Island.MOLOKAI;
+					seats = 0;
+					numCO -= 2;
+					numCM += 2;
+
+					if (numCO + numAO == 0) {
+						finish();
+						break;
+					}
+
+					rowBackToOahu();
+					island = Island.OAHU;
+				}
+			} else {
+				while (!finished && !returnNeeded) {
+					childrenWaitingM.sleep();
+				}
+				if (finished)
+					break;
 
-			while (numCWaiting > 1 || island != "Oahu") {
-				childrenWaitingO.sleep();
-			} // end while
-			if (numCWaiting == 0) {
-				numCWaiting++;
-				childrenWaitingO.wake();
-				CWaiting.sleep();
-				bg.ChildRideToMolokai();
-				numCO--;
+				returnNeeded = false;
 
-				CWaiting.wake();
-			} else {
-				numCWaiting++;
-				CWaiting.wake();
-				bg.ChildRowToMolokai();
-				numCO--;
-				CWaiting.sleep();
+				rowBackToOahu();
+				island = Island.OAHU;
 			}
+		} // end while
 
-			island = "Molokai";
+		O.release();
 
-			numCWaiting--;
-			numPass++;
+		done.countDown();
 
-			if (numPass == 1) {
-				childrenWaitingM.sleep();
-			}
-			numPass = 0;// if decrement while already 0; error
+	}// end ChildItinerary
 
-			bg.ChildRowToOahu();
-			island = "Oahu";
-			numCO++;
+	/**
+	 * Row the current child from Molokai back to Oahu, and wake an adult if it is
+	 * now an adult's turn. Must be called with <tt>O</tt> held.
+	 */
+	private static void rowBackToOahu() {
+		bg.ChildRowToOahu();
+		crossings++;
 
-			O.release();
-		} // end while
+		numCM--;
+		numCO++;
+		boat = Island.OAHU;
 
-		numCO--;
-		bg.ChildRowToMolokai();
+		if (adultMayRow())
+			adultsWaitingO.wake();
+	}
 
-		done.V();
+	/**
+	 * Everyone is on Molokai; release all children still waiting so their
+	 * threads can finish. Must be called with <tt>O</tt> held.
+	 */
+	private static void finish() {
+		finished = true;
 
-	}// end ChildItinerary
+		childrenWaitingO.wakeAll();
+		childrenWaitingM.wakeAll();
+	}
+
+	/**
+	 * Everyone can cross if there are two children to ferry the boat back and
+	 * forth, or if there is nobody but a single child, who rows over alone. An
+	 * adult can never bring the boat back, so adults with fewer than two
+	 * children are stuck.
+	 */
+	static boolean canCross(int adults, int children) {
+		return adults >= 0 && children >= 0 && (children >= 2 || adults == 0);
+	}
+
+	/**
+	 * An adult may row when the boat is empty on Oahu and a child is already on
+	 * Molokai to bring it back.
+	 */
+	private static boolean adultMayRow() {
+		return boat == Island.OAHU && seats == 0 && numAO > 0 && numCM > 0;
+	}
+
+	/**
+	 * A child on Oahu may take a seat when the boat is there, has room, and it is
+	 * not an adult's turn.
+	 */
+	private static boolean childMayBoard() {
+		return boat == Island.OAHU && seats < 2 && !adultMayRow();
+	}
+
+	/**
+	 * A grader that accepts every trip without printing it, for benchmarking.
+	 */
+	private static class QuietGrader extends BoatGrader {
+		public void ChildRowToMolokai() {
+		}
+
+		public void ChildRowToOahu() {
+		}
+
+		public void ChildRideToMolokai() {
+		}
+
+		public void ChildRideToOahu() {
+		}
+
+		public void AdultRowToMolokai() {
+		}
+
+		public void AdultRowToOahu() {
+		}
+
+		public void AdultRideToMolokai() {
+		}
+
+		public void AdultRideToOahu() {
+		}
+	}
 
 }
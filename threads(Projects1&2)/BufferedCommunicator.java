@@ -0,0 +1,214 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A buffered communicator lets threads exchange 32-bit messages through a
+ * bounded ring buffer. Unlike <tt>Communicator</tt>, a speaker does not wait
+ * for a listener to arrive; it only blocks while the buffer is full, and a
+ * listener only blocks while the buffer is empty. Words are received in the
+ * order they were spoken.
+ *
+ * <p>
+ * The batch forms of <tt>speak()</tt> and <tt>listen()</tt> move as many words
+ * as fit on each pass, so a burst of words costs one lock round trip and one
+ * wakeup per pass instead of one per word.
+ *
+ * @see nachos.threads.Communicator
+ */
+public class BufferedCommunicator {
+	// Private Variables\\
+	private Lock myLock;
+
+	private Condition notFull;
+	private Condition notEmpty;
+
+	private int[] buffer;
+	private int head;// index of the oldest word
+	private int count;// number of words in the buffer
+
+	/**
+	 * Allocate a new buffered communicator.
+	 *
+	 * @param capacity the maximum number of words held in the buffer. Must be
+	 *                 positive.
+	 */
+	public BufferedCommunicator(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		myLock = new Lock();
+
+		notFull = new Condition(myLock);
+		notEmpty = new Condition(myLock);
+
+		buffer = new int[capacity];
+		head = 0;
+		count = 0;
+	}
+
+	/**
+	 * Add <i>word</i> to the buffer, waiting while the buffer is full.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		myLock.acquire();
+
+		while (count == buffer.length) {
+			notFull.sleep();
+		}
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+
+		notEmpty.wake();
+
+		myLock.release();
+	}
+
+	/**
+	 * Add <i>len</i> words from <i>words</i>, starting at <i>off</i>, to the
+	 * buffer. Waits while the buffer is full, and does not return until every
+	 * word has been added.
+	 *
+	 * @param words the array containing the words to transfer.
+	 * @param off   the first word to transfer from the array.
+	 * @param len   the number of words to transfer.
+	 */
+	public void speak(int[] words, int off, int len) {
+		Lib.assertTrue(off >= 0 && len >= 0 && off + len <= words.length);
+
+		myLock.acquire();
+
+		while (len > 0) {
+			while (count == buffer.length) {
+				notFull.sleep();
+			}
+
+			int amount = Math.min(len, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+
+			// copy in at most two pieces: up to the end of the array, then the wrap
+			int first = Math.min(amount, buffer.length - tail);
+			System.arraycopy(words, off, buffer, tail, first);
+			System.arraycopy(words, off + first, buffer, 0, amount - first);
+
+			count += amount;
+			off += amount;
+			len -= amount;
+
+			if (amount == 1)
+				notEmpty.wake();
+			else
+				notEmpty.wakeAll();
+		}
+
+		myLock.release();
+	}
+
+	/**
+	 * Remove the oldest word from the buffer, waiting while the buffer is empty.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		myLock.acquire();
+
+		while (count == 0) {
+			notEmpty.sleep();
+		}
+
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+
+		notFull.wake();
+
+		myLock.release();
+
+		return word;
+	}
+
+	/**
+	 * Remove up to <tt>dst.length</tt> words from the buffer into <i>dst</i>.
+	 * Waits while the buffer is empty, then takes whatever is available without
+	 * waiting again.
+	 *
+	 * @param dst the array where the words will be stored.
+	 * @return the number of words transferred, which is at least one unless
+	 *         <i>dst</i> is empty.
+	 */
+	public int listen(int[] dst) {
+		if (dst.length == 0)
+			return 0;
+
+		myLock.acquire();
+
+		while (count == 0) {
+			notEmpty.sleep();
+		}
+
+		int amount = Math.min(dst.length, count);
+
+		int first = Math.min(amount, buffer.length - head);
+		System.arraycopy(buffer, head, dst, 0, first);
+		System.arraycopy(buffer, 0, dst, first, amount - first);
+
+		head = (head + amount) % buffer.length;
+		count -= amount;
+
+		if (amount == 1)
+			notFull.wake();
+		else
+			notFull.wakeAll();
+
+		myLock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Test that words arrive once each and in order when a fast speaker using
+	 * both forms of <tt>speak()</tt> fills a small buffer faster than a listener
+	 * using both forms of <tt>listen()</tt> drains it.
+	 */
+	public static void selfTest() {
+		final BufferedCommunicator comm = new BufferedCommunicator(4);
+		final int total = 100;
+
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				int[] words = new int[7];
+				int next = 0;
+				while (next < total) {
+					if (next % 2 == 0) {
+						comm.speak(next++);
+					} else {
+						int len = Math.min(words.length, total - next);
+						for (int i = 0; i < len; i++)
+							words[i] = next + i;
+						comm.speak(words, 0, len);
+						next += len;
+					}
+				}
+			}
+		}).setName("buffered speaker");
+		speaker.fork();
+
+		int[] dst = new int[3];
+		int expected = 0;
+		while (expected < total) {
+			if (expected % 3 == 0) {
+				Lib.assertTrue(comm.listen() == expected++, "word out of order");
+			} else {
+				int n = comm.listen(dst);
+				Lib.assertTrue(n >= 1 && n <= dst.length);
+				for (int i = 0; i < n; i++)
+					Lib.assertTrue(dst[i] == expected++, "word out of order");
+			}
+		}
+
+		speaker.join();
+		Lib.assertTrue(comm.count == 0, "words left over");
+	}
+}
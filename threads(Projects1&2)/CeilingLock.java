@@ -0,0 +1,133 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that uses the immediate priority ceiling protocol. Each
+ * ceiling lock is given a ceiling priority, at least as high as that of any
+ * thread that will use it. A thread that acquires the lock is raised to the
+ * ceiling at once, and its own priority is restored when it releases the lock.
+ *
+ * <p>
+ * Because a holder already runs at the highest priority of any thread that can
+ * block on the lock, waiters do not donate priority to it, and the scheduler
+ * never has to walk donation chains through it. A thread that blocks on a
+ * ceiling lock waits for at most one critical section of lower priority work.
+ *
+ * <p>
+ * Ceiling locks that are nested must be released in the reverse order in
+ * which they were acquired. Priority changes made by the holder itself while
+ * it holds the lock are undone on release.
+ */
+public class CeilingLock extends Lock {
+    /**
+     * Allocate a new ceiling lock. The lock will initially be <i>free</i>.
+     *
+     * @param	ceiling	the priority given to any thread holding this lock.
+     */
+    public CeilingLock(int ceiling) {
+	this("(unnamed lock)", ceiling);
+    }
+
+    /**
+     * Allocate a new named ceiling lock. The lock will initially be
+     * <i>free</i>.
+     *
+     * @param	name	the name to give to this lock.
+     * @param	ceiling	the priority given to any thread holding this lock.
+     */
+    public CeilingLock(String name, int ceiling) {
+	super(name, false);
+
+	Lib.assertTrue(ceiling >= PriorityScheduler.priorityMinimum
+		       && ceiling <= PriorityScheduler.priorityMaximum,
+		       "ceiling priority out of range");
+	this.ceiling = ceiling;
+    }
+
+    /**
+     * Atomically acquire this lock, then raise the current thread to this
+     * lock's ceiling priority if it is below it.
+     */
+    public void acquire() {
+	super.acquire();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	savedPriority = ThreadedKernel.scheduler.getPriority();
+	if (savedPriority < ceiling)
+	    ThreadedKernel.scheduler.setPriority(ceiling);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Restore the priority the current thread had before it acquired this
+     * lock, then atomically release the lock.
+     */
+    public void release() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (savedPriority < ceiling)
+	    ThreadedKernel.scheduler.setPriority(savedPriority);
+
+	super.release();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the ceiling priority of this lock.
+     *
+     * @return	the priority given to any thread holding this lock.
+     */
+    public int getCeiling() {
+	return ceiling;
+    }
+
+    /**
+     * Test that a holder runs at the ceiling of the innermost ceiling lock it
+     * holds, and gets back the priority it had before each lock on releasing
+     * it. Does nothing unless the kernel schedules strictly by priority.
+     */
+    public static void selfTest() {
+	if (!PriorityScheduler.isStrict())
+	    return;
+
+	int saved = currentPriority();
+	Lib.assertTrue(saved < PriorityScheduler.priorityMaximum - 1);
+
+	CeilingLock outer =
+	    new CeilingLock("CeilingLock.outer",
+			    PriorityScheduler.priorityMaximum - 1);
+	CeilingLock inner =
+	    new CeilingLock("CeilingLock.inner",
+			    PriorityScheduler.priorityMaximum);
+
+	outer.acquire();
+	Lib.assertTrue(currentPriority() == outer.getCeiling(),
+		       "holder not raised to the ceiling");
+
+	inner.acquire();
+	Lib.assertTrue(currentPriority() == inner.getCeiling());
+	inner.release();
+	Lib.assertTrue(currentPriority() == outer.getCeiling());
+
+	outer.release();
+	Lib.assertTrue(currentPriority() == saved,
+		       "priority not restored on release");
+    }
+
+    private static int currentPriority() {
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getPriority();
+	Machine.interrupt().restore(intStatus);
+	return priority;
+    }
+
+    private int ceiling;
+    /** The holder's priority from before it acquired this lock. */
+    private int savedPriority;
+}
@@ -3,7 +3,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-//import java.util.*;
+import java.util.LinkedList;
 
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
@@ -11,40 +11,24 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * Waiting speakers and listeners are kept in two FIFO queues. A thread that
+ * arrives while a partner is waiting pairs with the oldest one, hands the word
+ * over directly, and wakes only that partner. Like <tt>Condition2</tt>, this
+ * class disables interrupts for synchronization.
  */
 public class Communicator {
 	// Private Variables\\
-	private Lock myLock;
-	
-	private Condition spkIQ;
-	private Condition lstnIQ;
-	private Condition spkOut;
-	private Condition lstnIn;
-
-	private boolean spkIdle;
-	private boolean lstnIdle;
-	
-	private boolean rtn;
-	private Integer buffer;
+	private LinkedList<Waiter> speakers;
+	private LinkedList<Waiter> listeners;
 
 	/**
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
-
-		// Initialize lock, conditions, and booleans\\
-		myLock = new Lock();
-		
-		spkIQ = new Condition(myLock);
-		lstnIQ = new Condition(myLock);
-		spkOut = new Condition(myLock);
-		lstnIn = new Condition(myLock);
-
-		lstnIdle = false;
-	
-		spkIdle = false;
-		rtn = false;
-
+		speakers = new LinkedList<Waiter>();
+		listeners = new LinkedList<Waiter>();
 	}
 
 	/**
@@ -58,63 +42,176 @@ public class Communicator {
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Waiter lstn = nextListener();
+
+		if (lstn != null) {// a listener is already waiting; hand it the word
+			lstn.word = word;
+			lstn.source = this;
+			lstn.matched = true;
+			lstn.thread.ready();
+		} else {// wait for a listener to take the word
+			Waiter spk = new Waiter(KThread.currentThread());
+			spk.word = word;
+			speakers.add(spk);
+			KThread.sleep();
+		}
 
-		myLock.acquire();// acquire lock
+		Machine.interrupt().restore(intStatus);
+	}
 
-		while (spkIdle == true) { // While There is an idle speaker, putting it into the idle speaker queue
-			spkIQ.sleep();
+	/**
+	 * Wait for a thread to speak through this communicator, and then return the
+	 * <i>word</i> that thread passed to <tt>speak()</tt>.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		int word;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!speakers.isEmpty()) {// a speaker is already waiting; take its word
+			Waiter spk = speakers.removeFirst();
+			word = spk.word;
+			spk.thread.ready();
+		} else {// wait for a speaker to fill in the word
+			Waiter lstn = new Waiter(KThread.currentThread());
+			listeners.add(lstn);
+			KThread.sleep();
+			word = lstn.word;
 		}
-		spkIdle = true;// Tells program that there is a speaker idle in the queue
 
-		buffer = word; // setting buffer to given val
+		Machine.interrupt().restore(intStatus);
 
-		while (!lstnIdle || !rtn) { // while there is no idle listener OR no return val, wake up listener and put
-									// sending speaker to sleep
-			lstnIn.wake();
-			spkOut.sleep();
+		return word;
+	}
+
+	/**
+	 * Wait until a speaker is available on any of <i>chans</i>, then listen to
+	 * exactly one of them. If speakers are already waiting on several of the
+	 * channels, the first such channel in <i>chans</i> is chosen.
+	 *
+	 * <p>
+	 * This lets a single thread consume several communicators without forking
+	 * one listener thread per channel.
+	 *
+	 * @param word  a one-element array where the word transferred is stored.
+	 * @param chans the communicators to listen to.
+	 * @return the index in <i>chans</i> of the communicator that was heard.
+	 */
+	public static int select(int[] word, Communicator... chans) {
+		Lib.assertTrue(word.length >= 1 && chans.length >= 1);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// if any channel already has a speaker, listen to it without sleeping
+		for (int i = 0; i < chans.length; i++) {
+			if (!chans[i].speakers.isEmpty()) {
+				Waiter spk = chans[i].speakers.removeFirst();
+				word[0] = spk.word;
+				spk.thread.ready();
+
+				Machine.interrupt().restore(intStatus);
+				return i;
+			}
 		}
 
-		
-		//wakes waiting speaker & listener
-		spkIQ.wake();
-		lstnIQ.wake();
-		
-		//Resets the booleans to default
-		lstnIdle = false;
-		spkIdle = false;
-		rtn = false;
+		// otherwise wait on every channel at once; the first speaker wins
+		Waiter lstn = new Waiter(KThread.currentThread());
+		for (int i = 0; i < chans.length; i++)
+			chans[i].listeners.add(lstn);
 
-		
+		KThread.sleep();
+
+		int chosen = -1;
+		for (int i = 0; i < chans.length; i++) {
+			if (chans[i] == lstn.source && chosen == -1)
+				chosen = i;
+			else
+				chans[i].listeners.remove(lstn);
+		}
+		word[0] = lstn.word;
 
-		myLock.release();// release lock
+		Machine.interrupt().restore(intStatus);
 
+		return chosen;
 	}
 
 	/**
-	 * Wait for a thread to speak through this communicator, and then return the
-	 * <i>word</i> that thread passed to <tt>speak()</tt>.
+	 * Remove and return the oldest listener that has not already been paired
+	 * through another communicator in <tt>select()</tt>. Must be called with
+	 * interrupts disabled.
 	 *
-	 * @return the integer transferred.
+	 * @return the listener, or <tt>null</tt> if none is waiting.
 	 */
-	public int listen() {
-
-		myLock.acquire();// acquire lock
-		while (lstnIdle == true) { // while there is an idle listener, put it into a queue
-			lstnIQ.sleep();
-
+	private Waiter nextListener() {
+		while (!listeners.isEmpty()) {
+			Waiter lstn = listeners.removeFirst();
+			if (!lstn.matched)
+				return lstn;
 		}
 
-		lstnIdle = true;// Alerts program to waiting listener in queue
+		return null;
+	}
 
-		while (!spkIdle) {//while there is no idle speaker, hold onto the listener
-			lstnIn.sleep();
+	/**
+	 * A thread waiting in <tt>speak()</tt>, <tt>listen()</tt> or
+	 * <tt>select()</tt>, and the word being exchanged with it. A selecting
+	 * listener is queued on several communicators at once; <tt>matched</tt>
+	 * is set by the first speaker to reach it so the others pass it by.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread) {
+			this.thread = thread;
 		}
 
-		spkOut.wake();// wake outgoing speaker
-		rtn = true;// return is set to true
+		KThread thread;
+		int word;
+		boolean matched = false;
+		Communicator source = null;
+	}
 
-		myLock.release();// release lock
+	/**
+	 * Test <tt>select()</tt>: with a speaker already waiting, the first ready
+	 * channel is heard; with none, the thread sleeps until any channel speaks;
+	 * and a listener that has been satisfied through one channel is not handed a
+	 * word by another.
+	 */
+	public static void selfTest() {
+		final Communicator a = new Communicator();
+		final Communicator b = new Communicator();
+		int[] word = new int[1];
+
+		// speakers waiting on both channels: the first channel wins
+		KThread sa = speaker(a, 1), sb = speaker(b, 2);
+		while (a.speakers.isEmpty() || b.speakers.isEmpty())
+			KThread.yield();
+		Lib.assertTrue(select(word, a, b) == 0 && word[0] == 1);
+		Lib.assertTrue(select(word, a, b) == 1 && word[0] == 2);
+		sa.join();
+		sb.join();
+
+		// no speaker yet: sleep until one arrives on the second channel
+		sb = speaker(b, 3);
+		Lib.assertTrue(select(word, a, b) == 1 && word[0] == 3);
+		sb.join();
+
+		// the select above must no longer be listening on a
+		sa = speaker(a, 4);
+		Lib.assertTrue(a.listen() == 4);
+		sa.join();
+		Lib.assertTrue(a.listeners.isEmpty() && b.listeners.isEmpty());
+	}
 
-		return buffer;// return the integer value of the buffer
+	private static KThread speaker(final Communicator comm, final int word) {
+		KThread thread = new KThread(new Runnable() {
+			public void run() {
+				comm.speak(word);
+			}
+		}).setName("speaker " + word);
+		thread.fork();
+		return thread;
 	}
 }
@@ -71,10 +71,12 @@ public class Condition2 {
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		while (!threadQueue.isEmpty()) {//for the entire threadQueue, wake each thread
-			wake();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread.readyAll(threadQueue);//ready the entire threadQueue at once
+		threadQueue.clear();
 
-		}
+		Machine.interrupt().restore(intStatus);
 	}
 	
 	
@@ -0,0 +1,115 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A one-shot latch. Threads calling <tt>await()</tt> wait until
+ * <tt>countDown()</tt> has been called a fixed number of times; from then on
+ * <tt>await()</tt> returns immediately. This is the usual way for one thread to
+ * wait for several others to finish, for example the threads forked by
+ * <tt>Boat.begin()</tt>.
+ *
+ * <p>
+ * The call that brings the count to zero readies every waiter inside one
+ * interrupt-disabled section.
+ *
+ * @see nachos.threads.Barrier
+ */
+public class CountDownLatch {
+
+	// Private Vars\\
+	private int count;
+	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+
+	/**
+	 * Allocate a new latch.
+	 *
+	 * @param count the number of <tt>countDown()</tt> calls needed to open the
+	 *              latch. Must not be negative.
+	 */
+	public CountDownLatch(int count) {
+		Lib.assertTrue(count >= 0);
+
+		this.count = count;
+	}
+
+	/**
+	 * Decrement the count, releasing all waiting threads if it reaches zero. Has
+	 * no effect if the count is already zero.
+	 */
+	public void countDown() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0 && --count == 0) {
+			KThread.readyAll(waitQueue);
+			waitQueue.clear();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until the count reaches zero. Returns immediately if it already has.
+	 */
+	public void await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0) {
+			waitQueue.add(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the current count. As with semaphores, the value may have changed
+	 * by the time the caller looks at it.
+	 *
+	 * @return the number of <tt>countDown()</tt> calls still needed.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Test that waiters are held until the last <tt>countDown()</tt>, and that
+	 * <tt>await()</tt> on an open latch does not block.
+	 */
+	public static void selfTest() {
+		final CountDownLatch latch = new CountDownLatch(3);
+		final boolean[] through = new boolean[2];
+
+		KThread[] waiters = new KThread[through.length];
+		for (int i = 0; i < waiters.length; i++) {
+			final int which = i;
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					latch.await();
+					through[which] = true;
+				}
+			}).setName("latch waiter " + i);
+			waiters[i].fork();
+		}
+
+		latch.countDown();
+		latch.countDown();
+		KThread.yield();
+		for (int i = 0; i < through.length; i++)
+			Lib.assertTrue(!through[i], "waiter passed a closed latch");
+		Lib.assertTrue(latch.getCount() == 1);
+
+		latch.countDown();
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i].join();
+			Lib.assertTrue(through[i]);
+		}
+
+		// the latch stays open
+		latch.countDown();
+		Lib.assertTrue(latch.getCount() == 0);
+		latch.await();
+	}
+}
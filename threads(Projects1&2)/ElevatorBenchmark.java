@@ -0,0 +1,336 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Runs an elevator controller and riders over a simulated building and
+ * reports how well riders were served. The classes run are named by the
+ * <tt>ElevatorBenchmark.controller</tt> and <tt>ElevatorBenchmark.rider</tt>
+ * keys, and default to <tt>ElevatorController</tt> and <tt>Rider</tt>.
+ *
+ * <p>
+ * Riders arrive on random floors over time, each with a random itinerary. The
+ * controller and the riders are wrapped so that the measurements are taken at
+ * the controls, without any help from the classes being measured:
+ *
+ * <ul>
+ * <li><i>wait</i> is the time from a rider pressing a hall button to getting
+ * into a car;
+ * <li><i>trip</i> is the time from a rider arriving to finishing its last
+ * stop;
+ * <li><i>moves</i> counts the floors travelled by all cars;
+ * <li><i>kernel</i> and <i>user ticks per rider</i> are the kernel and user
+ * time the machine counted during the run, each divided by the number of
+ * riders.
+ * </ul>
+ *
+ * <p>
+ * Runs are seeded, so the same configuration always produces the same
+ * riders, and results can be compared before and after a change to the
+ * controller.
+ */
+public class ElevatorBenchmark {
+    /** Every rider arrives at the start. */
+    public static final int arrivalsAtOnce = 0;
+    /** Arrival times are spread evenly at random over the arrival window. */
+    public static final int arrivalsUniform = 1;
+    /** Riders arrive as a Poisson process over the arrival window. */
+    public static final int arrivalsPoisson = 2;
+
+    /**
+     * Run the benchmark with the configuration given by the
+     * <tt>ElevatorBenchmark.*</tt> keys, or the defaults, and print the
+     * results.
+     */
+    public static void run() {
+	run(Config.getInteger("ElevatorBenchmark.floors", 10),
+	    Config.getInteger("ElevatorBenchmark.elevators", 2),
+	    Config.getInteger("ElevatorBenchmark.riders", 200),
+	    Config.getInteger("ElevatorBenchmark.stops", 2),
+	    Config.getInteger("ElevatorBenchmark.arrivals", arrivalsPoisson),
+	    Config.getInteger("ElevatorBenchmark.window", 100000),
+	    Config.getInteger("ElevatorBenchmark.seed", 1));
+    }
+
+    /**
+     * Run one simulation and print the results.
+     *
+     * @param	numFloors	the number of floors in the building.
+     * @param	numElevators	the number of cars.
+     * @param	numRiders	the number of riders.
+     * @param	numStops	the number of stops each rider makes.
+     * @param	arrivals	how arrival times are chosen; one of
+     *				<tt>arrivalsAtOnce</tt>,
+     *				<tt>arrivalsUniform</tt> and
+     *				<tt>arrivalsPoisson</tt>.
+     * @param	window		the span of time, in clock ticks, over which
+     *				riders arrive.
+     * @param	seed		the seed for the random itineraries.
+     */
+    public static void run(int numFloors, int numElevators, int numRiders,
+			   int numStops, int arrivals, long window, long seed) {
+	Lib.assertTrue(numFloors >= 2 && numElevators >= 1 && numStops >= 1);
+	Lib.assertTrue(arrivals >= 0 && arrivals < arrivalNames.length,
+		       "unknown ElevatorBenchmark.arrivals: " + arrivals);
+
+	ElevatorBank bank = Machine.bank();
+	Lib.assertTrue(bank != null, "no elevator bank");
+
+	Random random = new Random(seed);
+	Metrics metrics = new Metrics();
+
+	String controllerName =
+	    Config.getString("ElevatorBenchmark.controller",
+			     "nachos.threads.ElevatorController");
+	String riderName =
+	    Config.getString("ElevatorBenchmark.rider", "nachos.threads.Rider");
+
+	bank.init(numElevators, numFloors,
+		  new MeteredController((ElevatorControllerInterface)
+					Lib.constructObject(controllerName),
+					metrics));
+
+	long delay = 0;
+	for (int i=0; i<numRiders; i++) {
+	    switch (arrivals) {
+	    case arrivalsUniform:
+		delay = (long) (random.nextDouble() * window);
+		break;
+	    case arrivalsPoisson:
+		double gap = -Math.log(1 - random.nextDouble())
+		    * window / Math.max(numRiders, 1);
+		delay += (long) gap;
+		break;
+	    default:
+		delay = 0;
+		break;
+	    }
+
+	    int floor = random.nextInt(numFloors);
+	    int[] stops = new int[numStops];
+	    for (int j=0, from=floor; j<numStops; j++) {
+		// any floor but the one the rider is leaving
+		stops[j] = random.nextInt(numFloors - 1);
+		if (stops[j] >= from)
+		    stops[j]++;
+		from = stops[j];
+	    }
+
+	    bank.addRider(new MeteredRider((RiderInterface)
+					   Lib.constructObject(riderName),
+					   delay, metrics),
+			  floor, stops);
+	}
+
+	long kernelTicks = Machine.stats().kernelTicks;
+	long userTicks = Machine.stats().userTicks;
+	bank.run();
+	kernelTicks = Machine.stats().kernelTicks - kernelTicks;
+	userTicks = Machine.stats().userTicks - userTicks;
+
+	int perRider = Math.max(numRiders, 1);
+
+	System.out.println("Elevator benchmark: " + controllerName + ", "
+			   + riderName);
+	System.out.println("  " + numFloors + " floors, "
+			   + numElevators + " cars, " + numRiders
+			   + " riders x " + numStops + " stops, "
+			   + arrivalNames[arrivals] + " arrivals over "
+			   + window + " ticks");
+	System.out.println("  wait: mean " + mean(metrics.waits)
+			   + ", p99 " + percentile(metrics.waits, 99));
+	System.out.println("  trip: mean " + mean(metrics.trips)
+			   + ", p99 " + percentile(metrics.trips, 99));
+	System.out.println("  car moves: " + metrics.moves
+			   + ", kernel ticks per rider: "
+			   + kernelTicks / perRider
+			   + ", user ticks per rider: " + userTicks / perRider);
+    }
+
+    private static long mean(ArrayList<Long> samples) {
+	if (samples.isEmpty())
+	    return 0;
+
+	long total = 0;
+	for (long sample : samples)
+	    total += sample;
+
+	return total / samples.size();
+    }
+
+    private static long percentile(ArrayList<Long> samples, int p) {
+	if (samples.isEmpty())
+	    return 0;
+
+	Collections.sort(samples);
+
+	int rank = (samples.size() * p + 99) / 100;
+	return samples.get(Math.max(rank, 1) - 1);
+    }
+
+    private static final String[] arrivalNames = {
+	"simultaneous", "uniform", "Poisson"
+    };
+
+    /**
+     * The samples collected during one run. Recorded with interrupts
+     * disabled, since riders and cars all report into it.
+     */
+    private static class Metrics {
+	void record(ArrayList<Long> samples, long sample) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    samples.add(sample);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	ArrayList<Long> waits = new ArrayList<Long>();
+	ArrayList<Long> trips = new ArrayList<Long>();
+	int moves = 0;
+    }
+
+    /**
+     * A controller that hands its controls to another controller, counting
+     * every floor the cars are sent to.
+     */
+    private static class MeteredController
+	implements ElevatorControllerInterface, ElevatorControls {
+	MeteredController(ElevatorControllerInterface controller,
+			  Metrics metrics) {
+	    this.controller = controller;
+	    this.metrics = metrics;
+	}
+
+	public void initialize(ElevatorControls controls) {
+	    this.controls = controls;
+	    controller.initialize(this);
+	}
+
+	public void run() {
+	    controller.run();
+	}
+
+	public boolean moveTo(int floor, int elevator) {
+	    int distance = Math.abs(floor - controls.getFloor(elevator));
+	    if (!controls.moveTo(floor, elevator))
+		return false;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    metrics.moves += distance;
+	    Machine.interrupt().restore(intStatus);
+	    return true;
+	}
+
+	public int getNumFloors() { return controls.getNumFloors(); }
+	public int getNumElevators() { return controls.getNumElevators(); }
+	public void setInterruptHandler(Runnable handler) {
+	    controls.setInterruptHandler(handler);
+	}
+	public void openDoors(int elevator) { controls.openDoors(elevator); }
+	public void closeDoors(int elevator) { controls.closeDoors(elevator); }
+	public int getFloor(int elevator) { return controls.getFloor(elevator); }
+	public void setDirectionDisplay(int elevator, int direction) {
+	    controls.setDirectionDisplay(elevator, direction);
+	}
+	public void finish() { controls.finish(); }
+	public ElevatorEvent getNextEvent() { return controls.getNextEvent(); }
+
+	private ElevatorControllerInterface controller;
+	private ElevatorControls controls;
+	private Metrics metrics;
+    }
+
+    /**
+     * A rider that arrives <i>delay</i> ticks into the run and hands its
+     * controls to another rider, timing its waits and its trip.
+     */
+    private static class MeteredRider implements RiderInterface, RiderControls {
+	MeteredRider(RiderInterface rider, long delay, Metrics metrics) {
+	    this.rider = rider;
+	    this.delay = delay;
+	    this.metrics = metrics;
+	}
+
+	public void initialize(RiderControls controls, int[] stops) {
+	    this.controls = controls;
+	    rider.initialize(this, stops);
+	}
+
+	public void run() {
+	    ThreadedKernel.alarm.waitUntil(delay);
+
+	    // the rider was not here to see anything that happened before now
+	    while (controls.getNextEvent() != null)
+		;
+
+	    arrivalTime = Machine.timer().getTime();
+	    rider.run();
+	}
+
+	public boolean pressDirectionButton(boolean up) {
+	    startWaiting();
+	    return controls.pressDirectionButton(up);
+	}
+
+	public boolean pressUpButton() {
+	    startWaiting();
+	    return controls.pressUpButton();
+	}
+
+	public boolean pressDownButton() {
+	    startWaiting();
+	    return controls.pressDownButton();
+	}
+
+	public boolean enterElevator(int elevator) {
+	    if (!controls.enterElevator(elevator))
+		return false;
+
+	    if (waitStart != -1) {
+		metrics.record(metrics.waits,
+			       Machine.timer().getTime() - waitStart);
+		waitStart = -1;
+	    }
+	    return true;
+	}
+
+	public void finish() {
+	    metrics.record(metrics.trips,
+			   Machine.timer().getTime() - arrivalTime);
+	    controls.finish();
+	}
+
+	private void startWaiting() {
+	    if (waitStart == -1)
+		waitStart = Machine.timer().getTime();
+	}
+
+	public int getNumFloors() { return controls.getNumFloors(); }
+	public int getNumElevators() { return controls.getNumElevators(); }
+	public void setInterruptHandler(Runnable handler) {
+	    controls.setInterruptHandler(handler);
+	}
+	public int getFloor() { return controls.getFloor(); }
+	public int[] getFloors() { return controls.getFloors(); }
+	public int getDirectionDisplay(int elevator) {
+	    return controls.getDirectionDisplay(elevator);
+	}
+	public RiderEvent getNextEvent() { return controls.getNextEvent(); }
+	public boolean pressFloorButton(int floor) {
+	    return controls.pressFloorButton(floor);
+	}
+	public boolean exitElevator(int floor) {
+	    return controls.exitElevator(floor);
+	}
+
+	private RiderInterface rider;
+	private RiderControls controls;
+	private long delay;
+	private Metrics metrics;
+	private long arrivalTime;
+	private long waitStart = -1;
+    }
+}
@@ -2,9 +2,26 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.BitSet;
+
 /**
  * A controller for all the elevators in an elevator bank. The controller
  * accesses the elevator bank through an instance of <tt>ElevatorControls</tt>.
+ *
+ * <p>
+ * The controller thread acts as a dispatcher. Each hall call is assigned to
+ * exactly one car: the one with the lowest estimated time to reach it. Every
+ * car has its own thread, which runs the assigned calls and the floor buttons
+ * pressed inside it using the LOOK algorithm. The car keeps moving in one
+ * direction, one floor at a time, while it has any request ahead. It stops
+ * where a rider wants to get off or an assigned call matches its direction.
+ * When nothing is left ahead it reverses if it has work behind it, and
+ * otherwise goes idle. Outstanding requests are kept as per-floor bitmaps.
+ *
+ * <p>
+ * No thread polls. The interrupt handler only signals a semaphore that the
+ * dispatcher sleeps on, and each car thread sleeps on its own condition
+ * variable until the dispatcher gives it work or reports its arrival.
  */
 public class ElevatorController implements ElevatorControllerInterface {
     /**
@@ -12,7 +29,7 @@ public class ElevatorController implements ElevatorControllerInterface {
      */
     public ElevatorController() {
     }
-    
+
     /**
      * Initialize this elevator controller. The controller will access the
      * elevator bank through <i>controls</i>. This constructor should return
@@ -26,6 +43,19 @@ public class ElevatorController implements ElevatorControllerInterface {
      *				the elevator bank in <i>any</i> other way.
      */
     public void initialize(ElevatorControls controls) {
+	this.controls = controls;
+
+	lock = new Lock("ElevatorController");
+	finished = false;
+
+	cars = new Car[controls.getNumElevators()];
+	for (int i=0; i<cars.length; i++)
+	    cars[i] = new Car(i, controls.getFloor(i), new Condition(lock));
+
+	eventPending = new Semaphore(0);
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventPending.V(); }
+	    });
     }
 
     /**
@@ -34,5 +64,300 @@ public class ElevatorController implements ElevatorControllerInterface {
      * call <tt>controls.finish()</tt> when the controller is finished.
      */
     public void run() {
+	for (int i=0; i<cars.length; i++) {
+	    final Car car = cars[i];
+	    new KThread(new Runnable() {
+		    public void run() { runCar(car); }
+		}).setName("elevator " + i).fork();
+	}
+
+	while (true) {
+	    eventPending.P();
+
+	    lock.acquire();
+	    if (!processEvents()) {
+		finished = true;
+		for (int i=0; i<cars.length; i++)
+		    cars[i].changed.wake();
+		lock.release();
+
+		controls.finish();
+		Lib.assertNotReached();
+	    }
+	    lock.release();
+	}
+    }
+
+    /**
+     * Dispatch every event the bank has queued for the controller. Must be
+     * called with <tt>lock</tt> held.
+     *
+     * @return	<tt>false</tt> if all riders are done.
+     */
+    private boolean processEvents() {
+	ElevatorEvent event;
+
+	while ((event = controls.getNextEvent()) != null) {
+	    Car car;
+
+	    switch (event.event) {
+	    case ElevatorEvent.eventUpButtonPressed:
+		assignCall(event.floor, ElevatorBank.dirUp);
+		break;
+
+	    case ElevatorEvent.eventDownButtonPressed:
+		assignCall(event.floor, ElevatorBank.dirDown);
+		break;
+
+	    case ElevatorEvent.eventFloorButtonPressed:
+		car = cars[event.elevator];
+		car.stops.set(event.floor);
+		car.changed.wake();
+		break;
+
+	    case ElevatorEvent.eventElevatorArrived:
+		car = cars[event.elevator];
+		car.floor = event.floor;
+		car.moving = false;
+		car.changed.wake();
+		break;
+
+	    case ElevatorEvent.eventRidersDone:
+		return false;
+	    }
+	}
+
+	return true;
     }
+
+    /**
+     * Give a hall call to the car that should reach it soonest, unless some
+     * car already has it.
+     */
+    private void assignCall(int floor, int direction) {
+	Car best = null;
+	int bestEstimate = 0;
+
+	for (int i=0; i<cars.length; i++) {
+	    if (cars[i].calls(direction).get(floor))
+		return;
+
+	    int estimate = estimateArrival(cars[i], floor, direction);
+	    if (best == null || estimate < bestEstimate) {
+		best = cars[i];
+		bestEstimate = estimate;
+	    }
+	}
+
+	best.calls(direction).set(floor);
+	best.changed.wake();
+    }
+
+    /**
+     * Estimate how long <i>car</i> would take to pick up a call at
+     * <i>floor</i> going <i>direction</i>, in floors travelled plus a fixed
+     * cost for every stop it already has to make.
+     */
+    private int estimateArrival(Car car, int floor, int direction) {
+	int distance = Math.abs(floor - car.floor);
+	int stopCost = doorFloors * car.numRequests();
+
+	if (car.direction == ElevatorBank.dirNeither)
+	    return distance + stopCost;
+
+	boolean ahead = (car.direction == ElevatorBank.dirUp)
+	    ? floor > car.floor : floor < car.floor;
+
+	if (ahead && direction == car.direction)
+	    return distance + stopCost;
+
+	// the car finishes its sweep before it can come back for this call
+	int turn = (car.direction == ElevatorBank.dirUp)
+	    ? Math.max(car.floor, car.farthestAbove())
+	    : Math.min(car.floor, car.farthestBelow());
+
+	return Math.abs(turn - car.floor) + Math.abs(turn - floor) + stopCost;
+    }
+
+    /**
+     * The body of a car's thread. Runs the car's requests until all riders are
+     * done.
+     */
+    private void runCar(Car car) {
+	lock.acquire();
+
+	while (!finished) {
+	    int direction = car.chooseDirection();
+
+	    if (car.stopHere(direction)) {
+		car.direction = direction;
+		controls.setDirectionDisplay(car.elevator, direction);
+		controls.openDoors(car.elevator);
+
+		// let the dispatcher take button presses while riders move
+		lock.release();
+		ThreadedKernel.alarm.waitUntil(doorTicks);
+		lock.acquire();
+
+		if (finished)
+		    break;
+		controls.closeDoors(car.elevator);
+
+		// a rider may have pressed for this floor while the doors were
+		// open, so decide again before leaving it
+		continue;
+	    }
+
+	    car.direction = direction;
+
+	    if (direction == ElevatorBank.dirUp)
+		car.moving = controls.moveTo(car.floor + 1, car.elevator);
+	    else if (direction == ElevatorBank.dirDown)
+		car.moving = controls.moveTo(car.floor - 1, car.elevator);
+
+	    // wait to arrive, or, if idle, for the dispatcher to assign work
+	    do {
+		car.changed.sleep();
+	    } while (car.moving && !finished);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * The controller's view of one car. Guarded by the controller's lock.
+     */
+    private static class Car {
+	Car(int elevator, int floor, Condition changed) {
+	    this.elevator = elevator;
+	    this.floor = floor;
+	    this.changed = changed;
+	}
+
+	BitSet calls(int direction) {
+	    return (direction == ElevatorBank.dirUp) ? upCalls : downCalls;
+	}
+
+	int numRequests() {
+	    return stops.cardinality() + upCalls.cardinality()
+		+ downCalls.cardinality();
+	}
+
+	/**
+	 * If the car should open its doors at its current floor before going
+	 * on in <i>direction</i>, clear the requests it serves there and
+	 * return <tt>true</tt>.
+	 */
+	boolean stopHere(int direction) {
+	    boolean up = (direction != ElevatorBank.dirDown
+			  && upCalls.get(floor));
+	    boolean down = (direction != ElevatorBank.dirUp
+			    && downCalls.get(floor));
+
+	    if (!stops.get(floor) && !up && !down)
+		return false;
+
+	    stops.clear(floor);
+	    if (up)
+		upCalls.clear(floor);
+	    if (down)
+		downCalls.clear(floor);
+
+	    return true;
+	}
+
+	/**
+	 * Decide which way to go next. A car keeps its direction while it has
+	 * requests ahead of it, reverses when it only has requests behind it,
+	 * and otherwise takes the direction of a call at its own floor, if any.
+	 */
+	int chooseDirection() {
+	    int above = nearestAbove(), below = nearestBelow();
+
+	    if (direction == ElevatorBank.dirUp && above >= 0)
+		return ElevatorBank.dirUp;
+	    if (direction == ElevatorBank.dirDown && below >= 0)
+		return ElevatorBank.dirDown;
+
+	    if (above >= 0 && below < 0)
+		return ElevatorBank.dirUp;
+	    if (below >= 0 && above < 0)
+		return ElevatorBank.dirDown;
+	    if (above >= 0 && below >= 0)
+		return (above - floor <= floor - below)
+		    ? ElevatorBank.dirUp : ElevatorBank.dirDown;
+
+	    if (upCalls.get(floor))
+		return ElevatorBank.dirUp;
+	    if (downCalls.get(floor))
+		return ElevatorBank.dirDown;
+
+	    return ElevatorBank.dirNeither;
+	}
+
+	int nearestAbove() {
+	    int nearest = -1;
+
+	    BitSet[] requests = { stops, upCalls, downCalls };
+	    for (int i=0; i<requests.length; i++) {
+		int f = requests[i].nextSetBit(floor + 1);
+		if (f >= 0 && (nearest < 0 || f < nearest))
+		    nearest = f;
+	    }
+
+	    return nearest;
+	}
+
+	int nearestBelow() {
+	    int nearest = -1;
+
+	    BitSet[] requests = { stops, upCalls, downCalls };
+	    for (int i=0; i<requests.length; i++)
+		nearest = Math.max(nearest,
+				   requests[i].previousSetBit(floor - 1));
+
+	    return nearest;
+	}
+
+	int farthestAbove() {
+	    return Math.max(stops.length(), Math.max(upCalls.length(),
+						     downCalls.length())) - 1;
+	}
+
+	int farthestBelow() {
+	    int farthest = -1;
+
+	    BitSet[] requests = { stops, upCalls, downCalls };
+	    for (int i=0; i<requests.length; i++) {
+		int f = requests[i].nextSetBit(0);
+		if (f >= 0 && (farthest < 0 || f < farthest))
+		    farthest = f;
+	    }
+
+	    return (farthest < 0) ? floor : farthest;
+	}
+
+	int elevator;
+	int floor;
+	int direction = ElevatorBank.dirNeither;
+	boolean moving = false;
+	/** Signalled when the car arrives or is given a new request. */
+	Condition changed;
+	/** Floors whose button has been pressed inside this car. */
+	BitSet stops = new BitSet();
+	/** Hall calls assigned to this car. */
+	BitSet upCalls = new BitSet();
+	BitSet downCalls = new BitSet();
+    }
+
+    /** How long the doors stay open at a stop, in clock ticks. */
+    private static final long doorTicks = 500;
+    /** The cost of one stop, counted as floors travelled, for estimates. */
+    private static final int doorFloors = 2;
+
+    private ElevatorControls controls;
+    private Lock lock;
+    private boolean finished;
+    private Car[] cars;
+    private Semaphore eventPending;
 }
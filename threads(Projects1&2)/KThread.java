@@ -3,6 +3,8 @@ package nachos.threads;
 import nachos.ag.BoatGrader;
 import nachos.machine.*;
 
+import java.util.Collection;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -279,6 +281,31 @@ public class KThread {
 		Machine.autoGrader().readyThread(this);
 	}
 
+	/**
+	 * Move each of the specified threads to the ready state and add them all to
+	 * the scheduler's ready queue in one operation. Equivalent to calling
+	 * <tt>ready()</tt> on each thread in iteration order.
+	 *
+	 * @param threads the threads to ready. Must not include the idle thread.
+	 */
+	public static void readyAll(Collection<KThread> threads) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		for (KThread thread : threads) {
+			Lib.debug(dbgThread, "Ready thread: " + thread.toString());
+
+			Lib.assertTrue(thread.status != statusReady);
+			Lib.assertTrue(thread != idleThread);
+
+			thread.status = statusReady;
+		}
+
+		readyQueue.waitForAccessAll(threads);
+
+		for (KThread thread : threads)
+			Machine.autoGrader().readyThread(thread);
+	}
+
 	/**
 	 * Waits for this thread to finish. If this thread is already finished, return
 	 * immediately. This method must only be called once; the second call is not
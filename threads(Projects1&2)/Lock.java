@@ -2,6 +2,13 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a
@@ -18,12 +25,92 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * When lock profiling is enabled (<tt>ThreadedKernel.profileLocks</tt> in
+ * <tt>nachos.conf</tt>), every lock counts its acquisitions, how many of them
+ * had to wait, how long they waited, and how long the lock was held.
+ * <tt>printStats()</tt> reports the most contended locks, one line per lock.
+ * Locks are only weakly registered for the report, so a lock that is no longer
+ * in use can still be garbage collected, and then drops out of it.
+ *
+ * <p>
+ * A lock follows one of two policies when it is released while threads are
+ * waiting. Under <i>handoff</i>, the default, ownership passes straight to the
+ * next waiter, and nobody else can take the lock until that waiter has been
+ * scheduled. Under <i>barging</i>, the lock becomes free and the next waiter is
+ * only woken; a thread that is already running may take the lock first, in
+ * which case the woken waiter goes back to waiting.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this("(unnamed lock)");
+    }
+
+    /**
+     * Allocate a new named lock. The lock will initially be <i>free</i>. The
+     * name is used for debugging and profiling purposes only.
+     *
+     * @param	name	the name to give to this lock.
+     */
+    public Lock(String name) {
+	this(name, true);
+    }
+
+    /**
+     * Allocate a new named lock with the specified release policy.
+     *
+     * @param	name	the name to give to this lock.
+     * @param	policy	<tt>policyHandoff</tt> or <tt>policyBarging</tt>.
+     */
+    public Lock(String name, int policy) {
+	this(name, true);
+
+	Lib.assertTrue(policy == policyHandoff || policy == policyBarging);
+	this.policy = policy;
+    }
+
+    /**
+     * Allocate a new named lock whose waiters may or may not donate priority
+     * to its holder.
+     *
+     * @param	name	the name to give to this lock.
+     * @param	transferPriority	<tt>true</tt> if threads waiting for this
+     *					lock should donate priority to the
+     *					thread holding it.
+     */
+    protected Lock(String name, boolean transferPriority) {
+	this.name = name;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+
+	if (profiling)
+	    register(this);
+    }
+
+    /**
+     * Add <i>lock</i> to the locks that <tt>printStats()</tt> reports, first
+     * dropping the ones that have been garbage collected if the list has
+     * doubled since that was last done.
+     */
+    private static void register(Lock lock) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	lock.serial = ++numRegistered;
+	profiledLocks.add(new WeakReference<Lock>(lock));
+
+	if (profiledLocks.size() >= pruneSize) {
+	    for (Iterator<WeakReference<Lock>> i=profiledLocks.iterator();
+		 i.hasNext(); ) {
+		if (i.next().get() == null)
+		    i.remove();
+	    }
+	    pruneSize = Math.max(2 * profiledLocks.size(), 64);
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -35,10 +122,26 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	long startTime = (profiling ? Machine.timer().getTime() : 0);
+	boolean contended = false;
 
-	if (lockHolder != null) {
+	if (policy == policyBarging) {
+	    // a woken waiter may find the lock taken again, and has to re-wait
+	    while (lockHolder != null) {
+		waitQueue.waitForAccess(thread);
+		KThread.sleep();
+		contended = true;
+	    }
+
+	    // we may have barged past the thread nextThread() woke, so tell the
+	    // queue who really holds the lock, for priority donation
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (lockHolder != null) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+	    contended = true;
 	}
 	else {
 	    waitQueue.acquire(thread);
@@ -47,6 +150,18 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profiling) {
+	    if (contended) {
+		long waited = Machine.timer().getTime() - startTime;
+		contendedCount++;
+		totalWaitTicks += waited;
+		maxWaitTicks = Math.max(maxWaitTicks, waited);
+	    }
+
+	    acquireCount++;
+	    acquireTime = Machine.timer().getTime();
+	}
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,8 +173,19 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if (profiling)
+	    totalHoldTicks += Machine.timer().getTime() - acquireTime;
+
+	if (policy == policyBarging) {
+	    lockHolder = null;
+
+	    KThread thread = waitQueue.nextThread();
+	    if (thread != null)
+		thread.ready();
+	}
+	else if ((lockHolder = waitQueue.nextThread()) != null) {
 	    lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -73,7 +199,196 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Print the profiling counters of the <i>max</i> locks that most often had
+     * to wait, most contended first. Does nothing unless lock profiling is
+     * enabled.
+     *
+     * @param	max	the maximum number of locks to list.
+     */
+    public static void printStats(int max) {
+	if (!profiling)
+	    return;
+
+	ArrayList<Lock> locks = new ArrayList<Lock>();
+	for (WeakReference<Lock> ref : profiledLocks) {
+	    Lock lock = ref.get();
+	    if (lock != null)
+		locks.add(lock);
+	}
+
+	Collections.sort(locks, new Comparator<Lock>() {
+		public int compare(Lock a, Lock b) {
+		    if (a.contendedCount != b.contendedCount)
+			return (a.contendedCount > b.contendedCount) ? -1 : 1;
+		    return Long.compare(b.totalWaitTicks, a.totalWaitTicks);
+		}
+	    });
+
+	System.out.println("Lock contention (" + locks.size() + " locks):");
+	for (int i=0; i<locks.size() && i<max; i++) {
+	    Lock l = locks.get(i);
+	    System.out.println("  " + l.name + " #" + l.serial
+			       + ": acquires " + l.acquireCount
+			       + ", contended " + l.contendedCount
+			       + ", wait ticks " + l.totalWaitTicks
+			       + " (max " + l.maxWaitTicks + ")"
+			       + ", hold ticks " + l.totalHoldTicks);
+	}
+    }
+
+    /**
+     * Return the name of this lock, as given to the constructor.
+     *
+     * @return	the name of this lock.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /** Pass ownership directly to the next waiter on release. */
+    public static final int policyHandoff = 0;
+    /** Free the lock on release, and let the next waiter compete for it. */
+    public static final int policyBarging = 1;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	profileTest();
+	bargingTest();
+    }
+
+    /**
+     * Test that a profiled lock counts its acquisitions, the ones that had to
+     * wait and how long they waited, and how long it was held.
+     */
+    private static void profileTest() {
+	boolean wasProfiling = profiling;
+	profiling = true;
+
+	final Lock lock = new Lock("Lock.selfTest");
+	lock.acquire();
+	lock.release();
+	Lib.assertTrue(lock.acquireCount == 1 && lock.contendedCount == 0);
+
+	lock.acquire();
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    lock.release();
+		}
+	    }).setName("lock waiter");
+	waiter.fork();
+
+	// hold the lock while the waiter blocks on it
+	ThreadedKernel.alarm.waitUntil(100);
+	lock.release();
+	waiter.join();
+
+	Lib.assertTrue(lock.acquireCount == 3 && lock.contendedCount == 1);
+	Lib.assertTrue(lock.totalWaitTicks > 0
+		       && lock.maxWaitTicks == lock.totalWaitTicks);
+	Lib.assertTrue(lock.totalHoldTicks >= 100);
+
+	boolean listed = false;
+	for (WeakReference<Lock> ref : profiledLocks)
+	    listed |= (ref.get() == lock);
+	Lib.assertTrue(listed, "profiled lock not registered");
+
+	profiling = wasProfiling;
+    }
+
+    /**
+     * Test that a barging lock still gives mutual exclusion, and that once a
+     * running thread has barged past a woken waiter, waiters donate priority
+     * to the thread that really holds the lock.
+     */
+    private static void bargingTest() {
+	final Lock lock = new Lock("Lock.barging", policyBarging);
+	final int[] inside = { 0 };
+	final int[] entries = { 0 };
+
+	KThread[] threads = new KThread[4];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    lock.acquire();
+			    Lib.assertTrue(++inside[0] == 1,
+					   "two threads hold a barging lock");
+			    entries[0]++;
+			    KThread.yield();
+			    inside[0]--;
+			    lock.release();
+			}
+		    }
+		}).setName("barger " + i);
+	    threads[i].fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+	Lib.assertTrue(entries[0] == 10 * threads.length);
+
+	if (!PriorityScheduler.isStrict())
+	    return;
+
+	KThread holder = KThread.currentThread();
+	int basePriority = PriorityScheduler.effectivePriority(holder);
+	Lib.assertTrue(basePriority < PriorityScheduler.priorityMaximum);
+
+	lock.acquire();
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    lock.release();
+		}
+	    }).setName("barging waiter");
+	PriorityScheduler.prioritize(waiter, PriorityScheduler.priorityMaximum);
+	waiter.fork();
+
+	// the waiter runs first and blocks on the lock
+	KThread.yield();
+
+	// wake the waiter, and take the lock back before it can run
+	lock.release();
+	lock.acquire();
+
+	// the waiter finds the lock taken and waits again, donating to us
+	KThread.yield();
+	Lib.assertTrue(PriorityScheduler.effectivePriority(holder)
+		       == PriorityScheduler.priorityMaximum,
+		       "donation did not follow a barging acquire");
+
+	lock.release();
+	waiter.join();
+	Lib.assertTrue(PriorityScheduler.effectivePriority(holder)
+		       == basePriority);
+    }
+
+    /**
+     * <tt>true</tt> if locks should collect profiling counters. Set by
+     * <tt>ThreadedKernel.initialize()</tt> before any lock is created.
+     */
+    static boolean profiling = false;
+    private static LinkedList<WeakReference<Lock>> profiledLocks =
+	new LinkedList<WeakReference<Lock>>();
+    private static int pruneSize = 64;
+    private static int numRegistered = 0;
+
+    private String name;
+    /** Tells apart locks with the same name in <tt>printStats()</tt>. */
+    private int serial;
+    private int acquireCount = 0;
+    private int contendedCount = 0;
+    private long totalWaitTicks = 0;
+    private long maxWaitTicks = 0;
+    private long totalHoldTicks = 0;
+    private long acquireTime;
+
+    private int policy = policyHandoff;
+
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue waitQueue;
 }
@@ -0,0 +1,108 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Measures lock throughput under the handoff and barging release policies.
+ *
+ * <p>
+ * A group of worker threads repeatedly acquire one shared lock, yield the
+ * processor part way through some of their critical sections (as if they had
+ * been preempted), release the lock, and yield again outside it. The benchmark
+ * reports how many critical sections complete per 1000 clock ticks under each
+ * policy.
+ *
+ * <p>
+ * The scheduler cannot be changed once the kernel is running, so the results
+ * are for whichever scheduler <tt>ThreadedKernel.scheduler</tt> names. To
+ * compare <tt>RoundRobinScheduler</tt> with <tt>PriorityScheduler</tt>, run
+ * the benchmark once under each. Under a priority scheduler, the workers are
+ * given a spread of priorities.
+ */
+public class LockBenchmark {
+    /**
+     * Run the benchmark with both policies and print the results.
+     *
+     * @param	numWorkers	the number of worker threads.
+     * @param	iterations	the number of critical sections each worker
+     *				runs.
+     */
+    public static void run(int numWorkers, int iterations) {
+	String schedulerName = ThreadedKernel.scheduler.getClass().getName();
+
+	System.out.println("Lock benchmark: " + numWorkers + " workers x "
+			   + iterations + " iterations, " + schedulerName);
+
+	report("handoff", measure(Lock.policyHandoff, numWorkers, iterations),
+	       numWorkers * iterations);
+	report("barging", measure(Lock.policyBarging, numWorkers, iterations),
+	       numWorkers * iterations);
+    }
+
+    /**
+     * Run one round of the benchmark.
+     *
+     * @return	the number of clock ticks the round took.
+     */
+    private static long measure(int policy, int numWorkers, int iterations) {
+	Lock lock = new Lock("LockBenchmark", policy);
+	CountDownLatch finished = new CountDownLatch(numWorkers);
+
+	KThread[] workers = new KThread[numWorkers];
+	for (int i=0; i<numWorkers; i++) {
+	    workers[i] = new KThread(new Worker(lock, finished, iterations, i));
+	    workers[i].setName("lock benchmark worker " + i);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<numWorkers; i++) {
+	    ThreadedKernel.scheduler.setPriority(workers[i],
+						 PriorityScheduler.priorityDefault
+						 + i % 3);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	long startTime = Machine.timer().getTime();
+
+	for (int i=0; i<numWorkers; i++)
+	    workers[i].fork();
+	finished.await();
+
+	return Machine.timer().getTime() - startTime;
+    }
+
+    private static void report(String policyName, long ticks, int sections) {
+	System.out.println("  " + policyName + ": " + sections + " sections in "
+			   + ticks + " ticks, "
+			   + (ticks > 0 ? (sections * 1000L / ticks) : sections)
+			   + " per 1000 ticks");
+    }
+
+    private static class Worker implements Runnable {
+	Worker(Lock lock, CountDownLatch finished, int iterations, int which) {
+	    this.lock = lock;
+	    this.finished = finished;
+	    this.iterations = iterations;
+	    this.which = which;
+	}
+
+	public void run() {
+	    for (int i=0; i<iterations; i++) {
+		lock.acquire();
+		// every few sections, lose the processor while holding the lock
+		if ((i + which) % 4 == 0)
+		    KThread.yield();
+		lock.release();
+
+		KThread.yield();
+	    }
+
+	    finished.countDown();
+	}
+
+	private Lock lock;
+	private CountDownLatch finished;
+	private int iterations;
+	private int which;
+    }
+}
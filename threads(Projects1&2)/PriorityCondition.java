@@ -0,0 +1,146 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A condition variable whose sleeping threads are kept in a scheduler
+ * <tt>ThreadQueue</tt> instead of a FIFO list. <tt>wake()</tt> therefore wakes
+ * the thread the scheduler would run first; under a priority scheduler this is
+ * the waiter with the highest effective priority, including any priority that
+ * has been donated to it.
+ *
+ * <p>
+ * Like <tt>Condition2</tt>, this class disables interrupts for
+ * synchronization, and obeys Mesa-style semantics.
+ *
+ * @see nachos.threads.Condition2
+ */
+public class PriorityCondition {
+
+	// Private Vars\\
+	private Lock conditionLock;
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+	/**
+	 * Allocate a new condition variable.
+	 *
+	 * @param conditionLock the lock associated with this condition variable. The
+	 *                      current thread must hold this lock whenever it uses
+	 *                      <tt>sleep()</tt>, <tt>wake()</tt>, or
+	 *                      <tt>wakeAll()</tt>.
+	 */
+	public PriorityCondition(Lock conditionLock) {
+		this.conditionLock = conditionLock;
+	}
+
+	/**
+	 * Atomically release the associated lock and go to sleep on this condition
+	 * variable until another thread wakes it using <tt>wake()</tt>. The current
+	 * thread must hold the associated lock. The thread will automatically reacquire
+	 * the lock before <tt>sleep()</tt> returns.
+	 */
+	public void sleep() {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		// disable before releasing so a waker cannot slip in between
+		boolean intStatus = Machine.interrupt().disable();
+
+		conditionLock.release();
+
+		waitQueue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+
+		conditionLock.acquire();
+	}
+
+	/**
+	 * Wake up at most one thread sleeping on this condition variable. The current
+	 * thread must hold the associated lock.
+	 */
+	public void wake() {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread nxtThread = waitQueue.nextThread();
+		if (nxtThread != null)
+			nxtThread.ready();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wake up all threads sleeping on this condition variable. The current thread
+	 * must hold the associated lock.
+	 */
+	public void wakeAll() {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		LinkedList<KThread> woken = new LinkedList<KThread>();
+		waitQueue.drainTo(woken);
+		KThread.readyAll(woken);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test that <tt>wake()</tt> picks the sleeper with the highest priority, even
+	 * one that went to sleep after the others, and that <tt>wakeAll()</tt> wakes
+	 * the rest in the order they went to sleep. Does nothing unless the kernel
+	 * schedules strictly by priority.
+	 */
+	public static void selfTest() {
+		if (!PriorityScheduler.isStrict())
+			return;
+
+		final Lock lock = new Lock();
+		final PriorityCondition cond = new PriorityCondition(lock);
+		final int[] asleep = { 0 };
+		final StringBuffer woken = new StringBuffer();
+
+		int low = PriorityScheduler.priorityDefault;
+		int[] priorities = { low, low, low + 1 };
+
+		KThread[] sleepers = new KThread[priorities.length];
+		for (int i = 0; i < sleepers.length; i++) {
+			final char name = (char) ('a' + i);
+			sleepers[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					asleep[0]++;
+					cond.sleep();
+					woken.append(name);
+					lock.release();
+				}
+			}).setName("sleeper " + name);
+			PriorityScheduler.prioritize(sleepers[i], priorities[i]);
+			sleepers[i].fork();
+
+			// each one goes to sleep before the next is started
+			while (asleep[0] <= i)
+				KThread.yield();
+		}
+
+		lock.acquire();
+		cond.wake();
+		lock.release();
+
+		// whichever sleeper was woken runs before we do again
+		KThread.yield();
+		Lib.assertTrue(woken.toString().equals("c"), "wake() did not pick the highest priority sleeper");
+
+		lock.acquire();
+		cond.wakeAll();
+		lock.release();
+
+		for (int i = 0; i < sleepers.length; i++)
+			sleepers[i].join();
+		Lib.assertTrue(woken.toString().equals("cab"), "wakeAll() did not keep sleep order");
+	}
+}
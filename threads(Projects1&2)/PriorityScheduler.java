@@ -110,6 +110,124 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Test that priority donated through a lock reaches its holder and is given
+	 * up when the holder releases the lock. Does nothing unless the kernel is
+	 * running this scheduler.
+	 */
+	public static void selfTest() {
+		drainTest();
+
+		if (!isStrict())
+			return;
+
+		final Lock lock = new Lock();
+		KThread holder = KThread.currentThread();
+		int basePriority = effectivePriority(holder);
+		Lib.assertTrue(basePriority < priorityMaximum);
+
+		lock.acquire();
+
+		KThread donor = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+			}
+		}).setName("donor");
+		prioritize(donor, priorityMaximum);
+		donor.fork();
+
+		// the donor runs first and blocks on the lock
+		KThread.yield();
+		Lib.assertTrue(effectivePriority(holder) == priorityMaximum, "no donation to the lock holder");
+
+		lock.release();
+		Lib.assertTrue(effectivePriority(holder) == basePriority, "donation outlived release()");
+
+		donor.join();
+	}
+
+	/**
+	 * Test the bulk queue operations, on threads that are never run and queues
+	 * of a scheduler of our own, so the test works under any kernel scheduler.
+	 * <tt>drainTo(Collection)</tt> must return threads by effective priority,
+	 * longest waiting first among equals, and <tt>drainTo(ThreadQueue)</tt> into
+	 * another priority queue must keep their arrival order.
+	 */
+	private static void drainTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		int[] priorities = { 1, 3, 1, 3, 2 };
+		KThread[] threads = newThreads(priorities.length);
+		KThread[] fifo = newThreads(4);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < threads.length; i++) {
+			scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		ArrayList<KThread> drained = new ArrayList<KThread>();
+		Lib.assertTrue(queue.drainTo(drained) == threads.length);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		int[] expected = { 1, 3, 4, 0, 2 };
+		for (int i = 0; i < expected.length; i++)
+			Lib.assertTrue(drained.get(i) == threads[expected[i]], "drainTo() out of priority order");
+
+		ThreadQueue from = scheduler.newThreadQueue(false);
+		ThreadQueue to = scheduler.newThreadQueue(false);
+		to.waitForAccess(fifo[0]);
+		from.waitForAccessAll(Arrays.asList(fifo[1], fifo[2], fifo[3]));
+
+		Lib.assertTrue(from.drainTo(to) == 3);
+		Lib.assertTrue(from.nextThread() == null);
+		for (int i = 0; i < fifo.length; i++)
+			Lib.assertTrue(to.nextThread() == fifo[i], "drainTo() lost arrival order");
+		Lib.assertTrue(to.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static KThread[] newThreads(int n) {
+		KThread[] threads = new KThread[n];
+		for (int i = 0; i < n; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+				}
+			}).setName("queued " + i);
+		}
+		return threads;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the kernel is running this scheduler, and not a
+	 * subclass, so threads run strictly in priority order.
+	 */
+	static boolean isStrict() {
+		return ThreadedKernel.scheduler != null && ThreadedKernel.scheduler.getClass() == PriorityScheduler.class;
+	}
+
+	/**
+	 * Set the priority of <i>thread</i>, for self-tests.
+	 */
+	static void prioritize(KThread thread, int priority) {
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the effective priority of <i>thread</i>, for self-tests.
+	 */
+	static int effectivePriority(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = ThreadedKernel.scheduler.getEffectivePriority(thread);
+		Machine.interrupt().restore(intStatus);
+		return priority;
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 *
@@ -144,6 +262,64 @@ public class PriorityScheduler extends Scheduler {
 			getThreadState(thread).acquire(this);
 		}
 
+		public void waitForAccessAll(Collection<KThread> threads) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (KThread thread : threads)
+				getThreadState(thread).waitForAccess(this);
+		}
+
+		/**
+		 * Remove every waiting thread at once, highest effective priority first and
+		 * longest waiting first among equals. Each thread's effective priority is
+		 * computed only once, instead of once per <tt>pickNextThread()</tt> call.
+		 */
+		public int drainTo(Collection<KThread> threads) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			final int n = waitingThreads.size();
+			final ThreadState[] states = waitingThreads.toArray(new ThreadState[n]);
+			final int[] pri = new int[n];
+			Integer[] order = new Integer[n];
+
+			for (int i = 0; i < n; i++) {
+				pri[i] = states[i].getEffectivePriority();
+				order[i] = i;
+			}
+
+			// stable, so equal priorities keep their arrival order
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return pri[b] - pri[a];
+				}
+			});
+
+			for (int i = 0; i < n; i++)
+				threads.add(states[order[i]].thread);
+			waitingThreads.clear();
+
+			return n;
+		}
+
+		/**
+		 * Move every waiting thread to <i>queue</i>. If <i>queue</i> is also a
+		 * priority queue, the threads keep their arrival order and no priorities
+		 * need to be computed.
+		 */
+		public int drainTo(ThreadQueue queue) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!(queue instanceof PriorityQueue))
+				return super.drainTo(queue);
+
+			int n = waitingThreads.size();
+			for (ThreadState ts : waitingThreads)
+				ts.waitForAccess((PriorityQueue) queue);
+			waitingThreads.clear();
+
+			return n;
+		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			// implement me
@@ -154,6 +330,9 @@ public class PriorityScheduler extends Scheduler {
 				return null;
 			}
 
+			waitingThreads.remove(ts);
+			ts.acquire(this);
+
 			return ts.thread;
 
 		}
@@ -175,13 +354,13 @@ public class PriorityScheduler extends Scheduler {
 			ThreadState nxtTS = null;
 			int nxtP = -1;
 
+			// strictly greater, so the longest waiter wins among equals
 			for (int i = 0; i < waitingThreads.size(); i++) {
 
 				int pri = waitingThreads.get(i).getEffectivePriority();
 				if ((pri > nxtP)) {
 					nxtP = pri;
 					nxtTS = waitingThreads.get(i);
-					waitingThreads.remove(i);
 
 				}
 
@@ -204,7 +383,9 @@ public class PriorityScheduler extends Scheduler {
 		public boolean transferPriority;// Alec
 
 		// protected boolean changePriority = false;
-		// protected ThreadState holder = null;
+
+		/** The thread that currently has access, or <tt>null</tt>. */
+		protected ThreadState holder = null;
 		public List<ThreadState> waitingThreads = new LinkedList<ThreadState>();
 	}
 
@@ -304,6 +485,12 @@ public class PriorityScheduler extends Scheduler {
 		public void waitForAccess(PriorityQueue waitQueue) {// concept/algorithm behind this?
 			// implement me
 
+			// a thread waiting for access cannot also be holding it
+			if (waitQueue.holder == this) {
+				ownedQueues.remove(waitQueue);
+				waitQueue.holder = null;
+			}
+
 			waitQueue.waitingThreads.add(this);
 
 		}
@@ -321,6 +508,13 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(PriorityQueue waitQueue) {
 			// implement me
 
+			if (waitQueue.holder == this)
+				return;
+
+			if (waitQueue.holder != null)
+				waitQueue.holder.ownedQueues.remove(waitQueue);
+
+			waitQueue.holder = this;
 			ownedQueues.add(waitQueue);
 
 		}
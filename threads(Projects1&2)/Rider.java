@@ -5,6 +5,12 @@ import nachos.machine.*;
 /**
  * A single rider. Each rider accesses the elevator bank through an
  * instance of <tt>RiderControls</tt>.
+ *
+ * <p>
+ * A rider never polls. Its interrupt handler only signals a semaphore, and
+ * the rider sleeps on that semaphore until the bank has an event for it. When
+ * a rider gets off and the same car is going the way of its next stop, it
+ * gets straight back on instead of calling another car.
  */
 public class Rider implements RiderInterface {
     /**
@@ -12,7 +18,7 @@ public class Rider implements RiderInterface {
      */
     public Rider() {
     }
-    
+
     /**
      * Initialize this rider. The rider will access the elevator bank through
      * <i>controls</i>, and the rider will make stops at different floors as
@@ -28,6 +34,13 @@ public class Rider implements RiderInterface {
      *				below.
      */
     public void initialize(RiderControls controls, int[] stops) {
+	this.controls = controls;
+	this.stops = stops;
+
+	eventPending = new Semaphore(0);
+	controls.setInterruptHandler(new Runnable() {
+		public void run() { eventPending.V(); }
+	    });
     }
 
     /**
@@ -48,5 +61,120 @@ public class Rider implements RiderInterface {
      * <tt>controls.finish()</tt> when the rider is finished.
      */
     public void run() {
+	int floor = controls.getFloor();
+	int elevator = -1;
+
+	for (int i=0; i<stops.length; i++) {
+	    int destination = stops[i];
+	    if (destination == floor)
+		continue;
+
+	    if (elevator == -1)
+		elevator = board(floor, directionTo(floor, destination));
+
+	    controls.pressFloorButton(destination);
+	    waitForDoors(elevator, destination);
+
+	    // the doors may close before we get out; ask for the floor again
+	    while (!controls.exitElevator(destination)) {
+		controls.pressFloorButton(destination);
+		waitForDoors(elevator, destination);
+	    }
+	    floor = destination;
+
+	    // stay with this car, doors still open, if it is going our way next
+	    int next = nextStop(i + 1, floor);
+	    if (next == -1
+		|| controls.getDirectionDisplay(elevator)
+		   != directionTo(floor, stops[next])
+		|| !controls.enterElevator(elevator))
+		elevator = -1;
+	}
+
+	controls.finish();
+	Lib.assertNotReached();
     }
+
+    /**
+     * Call a car to <i>floor</i> going <i>direction</i>, and get on the first
+     * one that opens its doors here going that way. If that car is full, call
+     * again once it has closed its doors, so it is not simply sent back to
+     * this floor while it is still here.
+     *
+     * @return	the car the rider is now in.
+     */
+    private int board(int floor, int direction) {
+	int full = -1;
+
+	controls.pressDirectionButton(direction == ElevatorBank.dirUp);
+
+	while (true) {
+	    RiderEvent event = nextEvent();
+	    if (event.floor != floor)
+		continue;
+
+	    if (event.event == RiderEvent.eventDoorsOpened
+		&& goesOurWay(event.elevator, direction)) {
+		if (controls.enterElevator(event.elevator))
+		    return event.elevator;
+		full = event.elevator;
+	    }
+	    else if (event.event == RiderEvent.eventDoorsClosed
+		     && event.elevator == full) {
+		controls.pressDirectionButton(direction == ElevatorBank.dirUp);
+		full = -1;
+	    }
+	}
+    }
+
+    private boolean goesOurWay(int elevator, int direction) {
+	int display = controls.getDirectionDisplay(elevator);
+	return display == direction || display == ElevatorBank.dirNeither;
+    }
+
+    /**
+     * Sleep until the doors of <i>elevator</i> open at <i>floor</i>.
+     */
+    private void waitForDoors(int elevator, int floor) {
+	while (true) {
+	    RiderEvent event = nextEvent();
+
+	    if (event.event == RiderEvent.eventDoorsOpened
+		&& event.floor == floor && event.elevator == elevator)
+		return;
+	}
+    }
+
+    /**
+     * Return the next event from the bank, sleeping until there is one.
+     */
+    private RiderEvent nextEvent() {
+	RiderEvent event;
+
+	while ((event = controls.getNextEvent()) == null)
+	    eventPending.P();
+
+	return event;
+    }
+
+    /**
+     * Return the index of the first stop at or after <i>i</i> that is not
+     * <i>floor</i>, or -1 if there is none.
+     */
+    private int nextStop(int i, int floor) {
+	for (; i<stops.length; i++) {
+	    if (stops[i] != floor)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private static int directionTo(int from, int to) {
+	return (to > from) ? ElevatorBank.dirUp : ElevatorBank.dirDown;
+    }
+
+    private RiderControls controls;
+    private int[] stops;
+    private Semaphore eventPending;
 }
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Iterator;
 
@@ -42,6 +43,47 @@ public class RoundRobinScheduler extends Scheduler {
 	    waitQueue.add(thread);
 	}
 
+	/**
+	 * Add several threads to the end of the wait queue in one step.
+	 *
+	 * @param	threads	the threads to append to the queue, in order.
+	 */
+	public void waitForAccessAll(Collection<KThread> threads) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    waitQueue.addAll(threads);
+	}
+
+	/**
+	 * Move the whole queue to the end of <i>threads</i> in one step.
+	 */
+	public int drainTo(Collection<KThread> threads) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int n = waitQueue.size();
+	    threads.addAll(waitQueue);
+	    waitQueue.clear();
+
+	    return n;
+	}
+
+	/**
+	 * Move the whole queue to the end of <i>queue</i>. If <i>queue</i> is
+	 * also a FIFO queue, this is a single list append.
+	 */
+	public int drainTo(ThreadQueue queue) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!(queue instanceof FifoQueue))
+		return super.drainTo(queue);
+
+	    int n = waitQueue.size();
+	    ((FifoQueue) queue).waitQueue.addAll(waitQueue);
+	    waitQueue.clear();
+
+	    return n;
+	}
+
 	/**
 	 * Remove a thread from the beginning of the queue.
 	 *
@@ -60,13 +102,11 @@ public class RoundRobinScheduler extends Scheduler {
 
 	/**
 	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. A round-robin
+	 * queue does not track who has access, so there is nothing to do.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
 	/**
@@ -2,6 +2,10 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -20,6 +24,20 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * <tt>V()</tt> hands each unit directly to a waiting thread, if there is one,
+ * instead of incrementing the value. A thread waiting in <tt>P(n)</tt> is
+ * therefore granted its units one at a time, in the order chosen by the wait
+ * queue, and is woken once it has all <i>n</i>.
+ *
+ * <p>
+ * A semaphore created in <i>mutex mode</i> is a binary semaphore used as a
+ * lock. It remembers the thread that last acquired it and waits on a queue that
+ * transfers priority, so threads blocked in <tt>P()</tt> donate their priority
+ * to that thread, just as they would for a <tt>Lock</tt>. Threads waiting in
+ * the timed <tt>P(long)</tt> are kept out of that queue, since a thread queue
+ * cannot give back a thread whose time runs out, and so do not donate.
  */
 public class Semaphore {
     /**
@@ -28,24 +46,123 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, false);
+    }
+
+    /**
+     * Allocate a new semaphore, optionally in mutex mode.
+     *
+     * @param	initialValue	the initial value of this semaphore. Must be
+     *				<tt>0</tt> or <tt>1</tt> in mutex mode.
+     * @param	transferPriority	<tt>true</tt> to create the semaphore in
+     *					mutex mode, so that waiting threads
+     *					donate priority to its last acquirer.
+     */
+    public Semaphore(int initialValue, boolean transferPriority) {
+	Lib.assertTrue(!transferPriority ||
+		       (initialValue == 0 || initialValue == 1));
+
 	value = initialValue;
+	this.transferPriority = transferPriority;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
     }
 
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(1);
+    }
+
+    /**
+     * Atomically wait until <i>n</i> units of this semaphore have been
+     * obtained. Units that are available immediately are taken at once; the
+     * rest are handed over by later calls to <tt>V()</tt>.
+     *
+     * @param	n	the number of units to obtain. Must not be negative.
+     */
+    public void P(int n) {
+	Lib.assertTrue(n >= 0);
+	Lib.assertTrue(!transferPriority || n <= 1);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
+	int taken = Math.min(value, n);
+	value -= taken;
+
+	if (taken < n) {
+	    KThread thread = KThread.currentThread();
+
+	    // one queue entry per missing unit; V() grants one entry at a time
+	    for (int i=taken; i<n; i++)
+		waitQueue.waitForAccess(thread);
+	    pending.put(thread, n - taken);
+
 	    KThread.sleep();
 	}
-	else {
+	else if (n > 0) {
+	    acquired(KThread.currentThread());
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Decrement this semaphore if it is non-zero, without waiting.
+     *
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired = (value > 0);
+	if (acquired) {
 	    value--;
+	    acquired(KThread.currentThread());
 	}
 
 	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    /**
+     * Wait at most <i>ticks</i> clock ticks for this semaphore to become
+     * non-zero, and decrement it if it does. Threads waiting in the untimed
+     * <tt>P()</tt> are served before threads waiting here. In mutex mode, a
+     * thread waiting here does not donate its priority to the holder.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the time ran out first.
+     *
+     * @see	nachos.machine.Timer#getTime()
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired = true;
+
+	if (value > 0) {
+	    value--;
+	    acquired(KThread.currentThread());
+	}
+	else if (ticks <= 0) {
+	    acquired = false;
+	}
+	else {
+	    KThread thread = KThread.currentThread();
+
+	    timedWaitQueue.add(thread);
+	    ThreadedKernel.alarm.wakeAt(thread,
+					Machine.timer().getTime() + ticks);
+	    KThread.sleep();
+
+	    // V() removes the thread before waking it; the alarm does not
+	    acquired = !timedWaitQueue.remove(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
     }
 
     /**
@@ -53,19 +170,94 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically increment this semaphore by <i>n</i>, handing each unit to a
+     * waiting thread if there is one. Up to <i>n</i> threads are woken, all
+     * within a single interrupt-disabled section.
+     *
+     * @param	n	the number of units to release. Must not be negative.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n >= 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
-	}
-	else {
-	    value++;
+	for (int i=0; i<n; i++) {
+	    KThread thread = waitQueue.nextThread();
+	    if (thread != null) {
+		int left = pending.get(thread) - 1;
+		if (left == 0) {
+		    pending.remove(thread);
+		    holder = thread;
+		    thread.ready();
+		}
+		else {
+		    pending.put(thread, left);
+		}
+	    }
+	    else if ((thread = nextTimedWaiter()) != null) {
+		acquired(thread);
+		thread.ready();
+	    }
+	    else {
+		value += n - i;
+		holder = null;
+		break;
+	    }
 	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Remove and return the oldest thread waiting in <tt>P(long)</tt> whose
+     * timeout has not yet fired. A thread whose timeout has fired has already
+     * been readied by the alarm; it is left in <tt>timedWaitQueue</tt> so that
+     * it sees, when it runs, that it timed out. Must be called with interrupts
+     * disabled.
+     *
+     * @return	the thread, or <tt>null</tt> if there is none.
+     */
+    private KThread nextTimedWaiter() {
+	for (Iterator<KThread> i=timedWaitQueue.iterator(); i.hasNext(); ) {
+	    KThread thread = i.next();
+	    if (ThreadedKernel.alarm.cancel(thread)) {
+		i.remove();
+		return thread;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Test if the current thread was the last to acquire this semaphore. Only
+     * meaningful in mutex mode.
+     *
+     * @return	<tt>true</tt> if this is a mutex-mode semaphore that the
+     *		current thread has acquired and not yet released.
+     */
+    public boolean isHeldByCurrentThread() {
+	return (holder == KThread.currentThread());
+    }
+
+    /**
+     * Record that <i>thread</i> obtained this semaphore without going through
+     * <tt>waitQueue</tt>. In mutex mode it becomes the thread that waiters
+     * donate priority to. Must be called with interrupts disabled, and only
+     * while no other thread is waiting in <tt>waitQueue</tt>.
+     */
+    private void acquired(KThread thread) {
+	if (!transferPriority)
+	    return;
+
+	waitQueue.acquire(thread);
+	holder = thread;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(Semaphore ping, Semaphore pong) {
 	    this.ping = ping;
@@ -96,9 +288,202 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	batchTest();
+	tryTest();
+	timeoutTest();
+	timedWakeTest();
+	timeoutRaceTest();
+	mutexTest();
+    }
+
+    /**
+     * In mutex mode the semaphore tracks its holder, and a high priority
+     * thread blocked in <tt>P()</tt> donates to it, so a medium priority thread
+     * that is ready to spin does not run before the waiter has the semaphore.
+     */
+    private static void mutexTest() {
+	final Semaphore mutex = new Semaphore(1, true);
+
+	mutex.P();
+	Lib.assertTrue(mutex.isHeldByCurrentThread());
+	mutex.V();
+	Lib.assertTrue(!mutex.isHeldByCurrentThread());
+
+	if (!PriorityScheduler.isStrict())
+	    return;
+
+	final boolean[] highDone = { false };
+	final boolean[] spinnerFirst = { false };
+
+	// we are the low priority holder
+	mutex.P();
+
+	KThread high = new KThread(new Runnable() {
+		public void run() {
+		    mutex.P();
+		    Lib.assertTrue(mutex.isHeldByCurrentThread());
+		    highDone[0] = true;
+		    mutex.V();
+		}
+	    }).setName("high");
+	KThread medium = new KThread(new Runnable() {
+		public void run() {
+		    spinnerFirst[0] = !highDone[0];
+		    for (int i=0; i<100 && !highDone[0]; i++)
+			KThread.yield();
+		}
+	    }).setName("medium");
+
+	int low = PriorityScheduler.effectivePriority(KThread.currentThread());
+	PriorityScheduler.prioritize(high, low + 2);
+	PriorityScheduler.prioritize(medium, low + 1);
+	high.fork();
+	medium.fork();
+
+	// high runs first and blocks in P(), lending us its priority
+	KThread.yield();
+	Lib.assertTrue(mutex.isHeldByCurrentThread());
+	mutex.V();
+	Lib.assertTrue(!mutex.isHeldByCurrentThread());
+
+	high.join();
+	medium.join();
+	Lib.assertTrue(!spinnerFirst[0],
+		       "the holder did not inherit the waiter's priority");
+    }
+
+    /**
+     * A thread in <tt>P(3)</tt> must not wake until all three units have been
+     * released, even when they arrive in separate calls to <tt>V()</tt>.
+     */
+    private static void batchTest() {
+	final Semaphore s = new Semaphore(0);
+	final boolean[] done = { false };
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    s.P(3);
+		    done[0] = true;
+		}
+	    }).setName("batch waiter");
+	waiter.fork();
+	waitUntilQueued(s, waiter);
+
+	s.V(2);
+	KThread.yield();
+	Lib.assertTrue(!done[0], "P(3) returned after two units");
+
+	s.V();
+	waiter.join();
+	Lib.assertTrue(done[0]);
+
+	// units with no waiter are kept, and P(n) takes them without waiting
+	s.V(4);
+	s.P(4);
+	Lib.assertTrue(!s.tryP());
+    }
+
+    private static void tryTest() {
+	Semaphore s = new Semaphore(1);
+
+	Lib.assertTrue(s.tryP());
+	Lib.assertTrue(!s.tryP());
+	s.V();
+	Lib.assertTrue(s.tryP());
+    }
+
+    /**
+     * A timed <tt>P()</tt> with no <tt>V()</tt> must give up, and must not take
+     * a unit released afterwards.
+     */
+    private static void timeoutTest() {
+	Semaphore s = new Semaphore(0);
+
+	long startTime = Machine.timer().getTime();
+	Lib.assertTrue(!s.P(100L), "timed P() succeeded with no V()");
+	Lib.assertTrue(Machine.timer().getTime() - startTime >= 100);
+
+	s.V();
+	Lib.assertTrue(s.tryP(), "a timed-out waiter took a later unit");
+    }
+
+    /**
+     * A timed <tt>P()</tt> must succeed if a <tt>V()</tt> comes first.
+     */
+    private static void timedWakeTest() {
+	final Semaphore s = new Semaphore(0);
+	final boolean[] result = { false };
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    result[0] = s.P(1000000L);
+		}
+	    }).setName("timed waiter");
+	waiter.fork();
+	waitUntilQueued(s, waiter);
+
+	s.V();
+	waiter.join();
+	Lib.assertTrue(result[0], "V() did not satisfy a timed P()");
+	Lib.assertTrue(!s.tryP(), "the unit was handed out twice");
+    }
+
+    /**
+     * The timeout of a waiter fires, readying it, but a <tt>V()</tt> comes
+     * before the waiter runs again. The <tt>V()</tt> must not ready it a second
+     * time, and the unit must stay in the semaphore.
+     */
+    private static void timeoutRaceTest() {
+	final Semaphore s = new Semaphore(0);
+	final boolean[] result = { true };
+
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    result[0] = s.P(1000000L);
+		}
+	    }).setName("racing waiter");
+	waiter.fork();
+	waitUntilQueued(s, waiter);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// do exactly what the alarm does when the timeout fires
+	Lib.assertTrue(ThreadedKernel.alarm.cancel(waiter));
+	waiter.ready();
+
+	s.V();
+
+	Machine.interrupt().restore(intStatus);
+
+	waiter.join();
+	Lib.assertTrue(!result[0], "a timed-out waiter reported success");
+	Lib.assertTrue(s.tryP(), "the unit released during the race was lost");
+    }
+
+    /**
+     * Yield until <i>thread</i> is blocked in one of <i>s</i>'s wait queues.
+     */
+    private static void waitUntilQueued(Semaphore s, KThread thread) {
+	while (true) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean queued = s.pending.containsKey(thread)
+		|| s.timedWaitQueue.contains(thread);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (queued)
+		return;
+	    KThread.yield();
+	}
     }
 
     private int value;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(false);
+    private boolean transferPriority;
+    /** In mutex mode, the thread that last acquired this semaphore. */
+    private KThread holder = null;
+    private ThreadQueue waitQueue;
+    /** Units still owed to each thread waiting in <tt>waitQueue</tt>. */
+    private HashMap<KThread, Integer> pending = new HashMap<KThread, Integer>();
+    /** Threads waiting in <tt>P(long)</tt>, in arrival order. */
+    private LinkedList<KThread> timedWaitQueue = new LinkedList<KThread>();
 }
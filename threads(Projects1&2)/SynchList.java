@@ -1,5 +1,6 @@
 package nachos.threads;
 
+import java.util.Collection;
 import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
@@ -9,29 +10,82 @@ import nachos.threads.*;
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new synchronized queue with no limit on its size.
      */
     public SynchList() {
+	this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * objects.
+     *
+     * @param	capacity	the maximum number of objects in the queue. Must
+     *				be positive.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
 	list = new LinkedList<Object>();
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
      * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * waiting in <tt>removeFirst()</tt>, it is woken up. Same as
+     * <tt>put(o)</tt>.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
     public void add(Object o) {
+	put(o);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking while the
+     * queue is full. If another thread is waiting in <tt>removeFirst()</tt>,
+     * it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void put(Object o) {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
+	while (list.size() >= capacity)
+	    listFull.sleep();
 	list.add(o);
 	listEmpty.wake();
 	lock.release();
     }
 
+    /**
+     * Add the specified object to the end of the queue if there is room,
+     * without blocking.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean offer(Object o) {
+	Lib.assertTrue(o != null);
+
+	boolean added = false;
+
+	lock.acquire();
+	if (list.size() < capacity) {
+	    list.add(o);
+	    listEmpty.wake();
+	    added = true;
+	}
+	lock.release();
+
+	return added;
+    }
+
     /**
      * Remove an object from the front of the queue, blocking until the queue
      * is non-empty if necessary.
@@ -45,11 +99,58 @@ public class SynchList {
 	while (list.isEmpty())
 	    listEmpty.sleep();
 	o = list.removeFirst();
+	listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * blocking.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	Object o = null;
+
+	lock.acquire();
+	if (!list.isEmpty()) {
+	    o = list.removeFirst();
+	    listFull.wake();
+	}
 	lock.release();
 
 	return o;
     }
 
+    /**
+     * Move up to <i>max</i> objects from the front of the queue to the end of
+     * <i>c</i>, in order, under a single acquisition of the queue's lock. Does
+     * not block.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the maximum number of objects to move.
+     * @return	the number of objects moved.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	int n = 0;
+
+	lock.acquire();
+	while (n < max && !list.isEmpty()) {
+	    c.add(list.removeFirst());
+	    n++;
+	}
+	if (n == 1)
+	    listFull.wake();
+	else if (n > 1)
+	    listFull.wakeAll();
+	lock.release();
+
+	return n;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -79,10 +180,50 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	boundedTest();
+    }
+
+    /**
+     * Test the capacity limit and the non-blocking operations: <tt>offer()</tt>
+     * refuses a full queue, <tt>put()</tt> blocks on one until there is room,
+     * and <tt>poll()</tt> and <tt>drainTo()</tt> never wait.
+     */
+    private static void boundedTest() {
+	final SynchList list = new SynchList(2);
+
+	Lib.assertTrue(list.poll() == null);
+	Lib.assertTrue(list.offer("a"));
+	Lib.assertTrue(list.offer("b"));
+	Lib.assertTrue(!list.offer("c"), "offer() overfilled the queue");
+
+	final boolean[] added = { false };
+	KThread putter = new KThread(new Runnable() {
+		public void run() {
+		    list.put("c");
+		    added[0] = true;
+		}
+	    }).setName("putter");
+	putter.fork();
+
+	KThread.yield();
+	Lib.assertTrue(!added[0], "put() did not block on a full queue");
+
+	Lib.assertTrue("a".equals(list.poll()));
+	putter.join();
+	Lib.assertTrue(added[0]);
+
+	LinkedList<Object> drained = new LinkedList<Object>();
+	Lib.assertTrue(list.drainTo(drained, 1) == 1);
+	Lib.assertTrue(list.drainTo(drained, 5) == 1);
+	Lib.assertTrue(list.drainTo(drained, 5) == 0);
+	Lib.assertTrue("b".equals(drained.get(0)) && "c".equals(drained.get(1)));
     }
 
+    private int capacity;
     private LinkedList<Object> list;
     private Lock lock;
     private Condition listEmpty;
+    private Condition listFull;
 }
 
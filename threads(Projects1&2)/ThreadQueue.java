@@ -1,5 +1,8 @@
 package nachos.threads;
 
+import java.util.Collection;
+import java.util.LinkedList;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -84,13 +87,65 @@ public abstract class ThreadQueue {
      *
      * <p>
      * This method should not be called for a thread returned from
-     * <tt>nextThread()</tt>.
+     * <tt>nextThread()</tt>. It may be called while other threads are
+     * waiting, if a thread takes a resource ahead of them; a lock that lets
+     * running threads barge past its waiters does this.
      *
      * @param	thread	the thread that has received access, but was not
      * 			returned from <tt>nextThread()</tt>.
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that each of the specified threads is waiting
+     * for access. Equivalent to calling <tt>waitForAccess()</tt> on each
+     * thread in iteration order, but schedulers may do it more cheaply.
+     *
+     * @param	threads	the threads waiting for access.
+     */
+    public void waitForAccessAll(Collection<KThread> threads) {
+	for (KThread thread : threads)
+	    waitForAccess(thread);
+    }
+
+    /**
+     * Remove every thread waiting on this queue, and add them to the end of
+     * <i>threads</i> in the order <tt>nextThread()</tt> would have returned
+     * them. None of the removed threads is given access to whatever this queue
+     * guards; the caller decides what to do with them.
+     *
+     * @param	threads	the collection to add the waiting threads to.
+     * @return	the number of threads removed.
+     */
+    public int drainTo(Collection<KThread> threads) {
+	int n = 0;
+
+	KThread thread;
+	while ((thread = nextThread()) != null) {
+	    threads.add(thread);
+	    n++;
+	}
+
+	return n;
+    }
+
+    /**
+     * Move every thread waiting on this queue to <i>queue</i>, as if each had
+     * called <tt>queue.waitForAccess()</tt> in the order <tt>nextThread()</tt>
+     * would have returned them.
+     *
+     * @param	queue	the queue the waiting threads should wait on instead.
+     * @return	the number of threads moved.
+     */
+    public int drainTo(ThreadQueue queue) {
+	LinkedList<KThread> threads = new LinkedList<KThread>();
+
+	int n = drainTo(threads);
+	queue.waitForAccessAll(threads);
+
+	return n;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
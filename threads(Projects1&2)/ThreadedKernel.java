@@ -31,6 +31,9 @@ public class ThreadedKernel extends Kernel {
 	else
 	    fileSystem = null;
 
+	// collect lock contention counters if requested
+	Lock.profiling = Config.getBoolean("ThreadedKernel.profileLocks", false);
+
 	// start threading
 	new KThread(null);
 
@@ -43,15 +46,31 @@ public class ThreadedKernel extends Kernel {
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
      * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
      * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * tests here. If <tt>ThreadedKernel.runBenchmarks</tt> is set, also runs
+     * the kernel benchmarks.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	PriorityScheduler.selfTest();
+	PriorityCondition.selfTest();
+	Communicator.selfTest();
+	BufferedCommunicator.selfTest();
+	Barrier.selfTest();
+	CountDownLatch.selfTest();
+	Lock.selfTest();
+	CeilingLock.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+
+	if (Config.getBoolean("ThreadedKernel.runBenchmarks", false)) {
+	    LockBenchmark.run(8, 200);
+	    Boat.benchmark(1000, 1000);
+	    if (Machine.bank() != null)
+		ElevatorBenchmark.run();
+	}
     }
     
     /**
@@ -62,9 +81,11 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. Prints the most contended locks
+     * first, if lock profiling is enabled.
      */
     public void terminate() {
+	Lock.printStats(10);
 	Machine.halt();
     }
 
@@ -83,4 +104,10 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static PriorityCondition dummy8 = null;
+    private static BufferedCommunicator dummy9 = null;
+    private static Barrier dummy10 = null;
+    private static CountDownLatch dummy11 = null;
+    private static CeilingLock dummy12 = null;
+    private static ElevatorBenchmark dummy13 = null;
 }